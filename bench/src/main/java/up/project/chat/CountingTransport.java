@@ -0,0 +1,52 @@
+package up.project.chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Transport that only counts, so the benchmarks measure the engine and not sockets
+class CountingTransport implements Transport {
+    // Fan-out threads add to these too
+    final LongAdder frames = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+
+    @Override
+    public void send(ClientInfo cc, Frame frame) {
+        frames.increment();
+        bytes.add(frame.text().remaining());
+    }
+
+    // Called by the fan-out threads for sharded rooms
+    @Override
+    public void send(ClientInfo[] ccs, int from, int to, Frame frame) {
+        frames.add(to - from);
+        bytes.add((long) (to - from) * frame.text().remaining());
+    }
+
+    @Override
+    public void send(ClientInfo cc, FileRegion region) {
+        frames.increment();
+        bytes.add(region.remaining());
+        region.release();
+    }
+
+    @Override
+    public void resume(ClientInfo cc, Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void interrupt(ClientInfo cc, Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void closeAfterFlush(ClientInfo cc) {
+    }
+
+    @Override
+    public void close(ClientInfo cc) {
+    }
+
+    @Override
+    public void schedule(ClientInfo cc, Runnable task, long delayMillis) {
+    }
+}
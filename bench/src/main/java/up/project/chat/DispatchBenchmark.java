@@ -0,0 +1,57 @@
+package up.project.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// processCommands for the common commands, in a two-member room
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"message", "escaped", "priv", "unknown"})
+    String command;
+
+    private ChatEngine engine;
+    private ClientInfo sender;
+    private CountingTransport transport;
+    private ByteBuffer line;
+
+    @Setup
+    public void setup() {
+        engine = new ChatEngine();
+        transport = new CountingTransport();
+
+        sender = engine.newClient(null, transport);
+        ClientInfo other = engine.newClient(null, transport);
+        feed(engine, sender, "/nick alice\n/join room\n");
+        feed(engine, other, "/nick bob\n/join room\n");
+
+        String text;
+        switch (command) {
+            case "message": text = "hello everyone, how is it going?\n"; break;
+            case "escaped": text = "//slash at the start of a message\n"; break;
+            case "priv": text = "/priv bob just between the two of us\n"; break;
+            default: text = "/whatever this is\n";
+        }
+        line = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public long dispatch() {
+        sender.getFramer().feed(line.duplicate());
+        engine.processCommands(sender);
+        return transport.frames.sum();
+    }
+
+    // Run commands as if cc had sent them
+    static void feed(ChatEngine engine, ClientInfo cc, String commands) {
+        cc.getFramer().feed(ByteBuffer.wrap(commands.getBytes(StandardCharsets.UTF_8)));
+        engine.processCommands(cc);
+    }
+}
@@ -0,0 +1,47 @@
+package up.project.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// One message to a room, messageRoomExcept handing the frame to every member;
+//  the sender's thread delivers to rooms of every size, the fan-out threads
+//  would only measure the hand-off and let their queues grow
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-Dchat.fanout.shardMin=0"})
+public class FanoutBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"})
+    int roomSize;
+
+    private ChatEngine engine;
+    private ClientInfo sender;
+    private CountingTransport transport;
+    private ByteBuffer line;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        engine = new ChatEngine();
+        transport = new CountingTransport();
+
+        for (int i = 0; i < roomSize; i++) {
+            ClientInfo cc = engine.newClient(null, transport);
+            DispatchBenchmark.feed(engine, cc, "/nick user" + i + "\n/join big\n");
+            if (i == 0) sender = cc;
+        }
+
+        line = ByteBuffer.wrap("a typical chat line of a few dozen bytes\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public long broadcast() {
+        sender.getFramer().feed(line.duplicate());
+        engine.processCommands(sender);
+        return transport.frames.sum();
+    }
+}
@@ -0,0 +1,53 @@
+package up.project.chat;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// ClientInfo's line framing: one 16 KiB read worth of lines, split like the socket would
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineFramerBenchmark {
+    @Param({"16", "200", "4000"})
+    int lineLength;
+
+    private ByteBuffer input;
+    private LineFramer framer;
+
+    @Setup
+    public void setup() {
+        StringBuilder line = new StringBuilder();
+        while (line.length() < lineLength) line.append("olá mundo ");
+        line.setLength(lineLength);
+        line.append('\n');
+
+        StringBuilder all = new StringBuilder();
+        while (all.length() < 16384) all.append(line);
+
+        input = ByteBuffer.wrap(all.toString().getBytes(StandardCharsets.UTF_8));
+        framer = new LineFramer(ServerConfig.MAX_LINE);
+    }
+
+    @Benchmark
+    public void frame(Blackhole bh) {
+        // Feed in 1500 byte pieces, roughly one TCP segment each
+        ByteBuffer in = input.duplicate();
+        while (in.hasRemaining()) {
+            ByteBuffer piece = in.slice();
+            piece.limit(Math.min(1500, piece.remaining()));
+            in.position(in.position() + piece.remaining());
+
+            framer.feed(piece);
+            while (framer.next() == LineFramer.LINE) {
+                bh.consume(framer.lineLength());
+            }
+        }
+    }
+}
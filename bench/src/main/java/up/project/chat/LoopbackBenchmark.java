@@ -0,0 +1,115 @@
+package up.project.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// End to end over loopback against a ChatServer started in the benchmark JVM
+//  every member receives every message, the sender included, so one operation
+//  is a burst of messages followed by waiting until the sender read them all
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class LoopbackBenchmark {
+    static private final int BURST = 100;
+
+    @Param({"nio", "virtual"})
+    String mode;
+
+    @Param({"2", "50"})
+    int roomSize;
+
+    @Param("17000")
+    int port;
+
+    private Socket sender;
+    private Socket[] listeners;
+    private byte[] burst;
+    private final byte[] readBuffer = new byte[65536];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // The accept loop never returns, the server dies with the forked JVM
+        String[] args = {Integer.toString(port), mode};
+        Thread server = new Thread(() -> ChatServer.main(args), "server");
+        server.setDaemon(true);
+        server.start();
+
+        listeners = new Socket[roomSize - 1];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = connect("listener" + i);
+            drainInBackground(listeners[i]);
+        }
+        sender = connect("sender");
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BURST; i++) sb.append("benchmark message number ").append(i).append('\n');
+        burst = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        for (Socket s : listeners) s.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void roundTrip() throws IOException {
+        sender.getOutputStream().write(burst);
+        awaitLines(sender.getInputStream(), BURST);
+    }
+
+    private Socket connect(String nick) throws Exception {
+        // The server may still be binding
+        Socket s = null;
+        for (int tries = 0; s == null; tries++) {
+            try {
+                s = new Socket("localhost", port);
+            } catch (IOException e) {
+                if (tries == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+        s.setTcpNoDelay(true);
+
+        OutputStream out = s.getOutputStream();
+        out.write(("/nick " + nick + "\n/join bench\n").getBytes(StandardCharsets.UTF_8));
+        awaitLines(s.getInputStream(), 2);
+        return s;
+    }
+
+    // Reads until n newlines went by, JOINED notices included
+    private void awaitLines(InputStream in, int n) throws IOException {
+        int seen = 0;
+        while (seen < n) {
+            int read = in.read(readBuffer);
+            if (read == -1) throw new IOException("server closed the connection");
+            for (int i = 0; i < read; i++) {
+                if (readBuffer[i] == '\n') seen++;
+            }
+        }
+    }
+
+    private static void drainInBackground(Socket s) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[65536];
+            try {
+                InputStream in = s.getInputStream();
+                while (in.read(buf) != -1) ;
+            } catch (IOException e) {
+                // Closed at tear down
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+}
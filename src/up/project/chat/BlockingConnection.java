@@ -0,0 +1,404 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A connection served by two blocking threads: one reads and runs the
+//  commands, the other drains the outbound queue to the socket
+class BlockingConnection implements Transport {
+    // Most frames taken off the queue for one gathering write
+    static private final int MAX_GATHER = 64;
+
+    // Most bytes taken from the socket per read
+    static private final int READ_BYTES = 16384;
+
+    private final SocketChannel channel;
+    private final ChatEngine engine;
+    private final TimerThread timers;
+    private final ClientInfo cc;
+
+    // Guards the outbound queue (a ReentrantLock, so virtual threads are not pinned)
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Condition resumed = lock.newCondition();
+    private boolean closed;
+
+    // Handed over by resume() for the reader to run, see awaitResumed()
+    private Runnable resumeTask;
+    private boolean readerDone;
+
+    // Handed over by interrupt(), run once the reader sees its input end
+    private Runnable interruptTask;
+
+    BlockingConnection(SocketChannel channel, ChatEngine engine, TimerThread timers) {
+        this.channel = channel;
+        this.engine = engine;
+        this.timers = timers;
+        this.cc = engine.newClient(channel, this);
+    }
+
+    // Check the timeouts on the timer thread for as long as there are any
+    void watch() {
+        long delay = engine.checkTimeouts(cc, TimingWheel.now());
+        if (delay >= 0)
+            timers.schedule(this::watch, delay);
+    }
+
+    void readLoop() {
+        try {
+            while (!cc.isClosing()) {
+                awaitReadable();
+
+                // Read the message to a pooled buffer, a blocked reader holds
+                //  it while it waits, but not while it runs the commands
+                ByteBuffer buffer = BufferPool.acquire(READ_BYTES);
+                try {
+                    int read = channel.read(buffer);
+                    if (read == -1)
+                        break;
+                    buffer.flip();
+                    Metrics.bytesIn.add(read);
+                    cc.setLastInput(TimingWheel.now());
+
+                    // Pass the bytes to the client's framer, lines are decoded one by one
+                    cc.getFramer().feed(buffer);
+                } finally {
+                    BufferPool.release(buffer);
+                }
+
+                engine.processCommands(cc);
+                awaitResumed();
+            }
+
+            // Input ended by interrupt(), run its task while the client is still whole
+            runInterruptTask();
+
+        } catch (IOException ie) {
+            // Connection dropped, clean up below
+        } finally {
+            // A /bye already removed it, anything else is an abrupt close
+            if (!cc.isClosing())
+                close();
+        }
+
+        // Only the reader touches the client's room and nick, so it is the
+        //  one removing the client; the writer just closes the socket
+        engine.deleteClient(cc);
+
+        // From here on resume() and interrupt() run their task themselves
+        Runnable task, late;
+        lock.lock();
+        try {
+            readerDone = true;
+            task = resumeTask;
+            resumeTask = null;
+            late = interruptTask;
+            interruptTask = null;
+        } finally {
+            lock.unlock();
+        }
+        if (task != null)
+            task.run();
+        if (late != null)
+            late.run();
+    }
+
+    private void runInterruptTask() {
+        Runnable task;
+        lock.lock();
+        try {
+            task = interruptTask;
+            interruptTask = null;
+        } finally {
+            lock.unlock();
+        }
+
+        if (task != null)
+            task.run();
+    }
+
+    // While a command waits on another node, run its answer here and go on
+    //  with the commands behind it; returns early if the connection closes
+    private void awaitResumed() {
+        while (cc.isSuspended()) {
+            Runnable task;
+            lock.lock();
+            try {
+                while (resumeTask == null && !closed)
+                    resumed.awaitUninterruptibly();
+                task = resumeTask;
+                resumeTask = null;
+            } finally {
+                lock.unlock();
+            }
+
+            if (task == null)
+                return;
+            task.run();
+            engine.processCommands(cc);
+        }
+    }
+
+    void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+
+        try {
+            while (true) {
+                int n = 0;
+                FileRegion region;
+
+                lock.lock();
+                try {
+                    while (cc.getOutbound().isEmpty() && !closed && !cc.isClosing())
+                        queued.await();
+
+                    if (closed)
+                        return;
+
+                    // Left after /bye and BYE is out
+                    if (cc.getOutbound().isEmpty())
+                        break;
+
+                    if (cc.getQueuedSince() != 0)
+                        awaitWindow();
+
+                    // A file region goes out on its own, frames are gathered up to the next one
+                    region = cc.getOutbound().pollRegion();
+
+                    ByteBuffer frame;
+                    while (region == null && n < MAX_GATHER && (frame = cc.getOutbound().poll()) != null)
+                        batch[n++] = frame;
+
+                    Metrics.queueDepth.record(cc.getOutbound().bytes());
+                    if (cc.getOutbound().bytes() < ServerConfig.QUEUE_LOW_WATER)
+                        drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+
+                // Write outside the lock, senders only ever wait on the queue
+                if (region != null) {
+                    try {
+                        while (region.remaining() > 0) {
+                            Metrics.bytesOut.add(region.transferTo(channel));
+                            Metrics.writeCalls.increment();
+                        }
+                    } finally {
+                        region.release();
+                    }
+                    continue;
+                }
+
+                long left = 0;
+                for (int i = 0; i < n; i++)
+                    left += batch[i].remaining();
+                Metrics.bytesOut.add(left);
+                left -= channel.write(batch, 0, n);
+                Metrics.writeCalls.increment();
+                while (left > 0) {
+                    // Blocked mid batch, the socket buffer was full
+                    Metrics.partialWrites.increment();
+                    left -= channel.write(batch, 0, n);
+                    Metrics.writeCalls.increment();
+                }
+
+                Arrays.fill(batch, 0, n, null);
+            }
+
+        } catch (IOException | InterruptedException e) {
+            // Connection dropped, fall through to close
+        }
+
+        // Also wakes up the reader so it cleans up
+        close();
+    }
+
+    // With FLUSH_COALESCE the writer lets the first frame wait out the window,
+    //  whatever comes in meanwhile goes out in the same write; lock held
+    private void awaitWindow() throws InterruptedException {
+        long since = cc.getQueuedSince();
+        long left = since + ServerConfig.FLUSH_WINDOW_MICROS * 1000 - System.nanoTime();
+        while (left > 0 && !closed && !cc.isClosing())
+            left = queued.awaitNanos(left);
+
+        Metrics.flushDelayMicros.record((System.nanoTime() - since) / 1000);
+        cc.setQueuedSince(0);
+    }
+
+    @Override
+    public void send(ClientInfo cc, Frame frame) {
+        lock.lock();
+        try {
+            // Nothing more goes to a client that is leaving or being dropped
+            if (closed || cc.isClosing())
+                return;
+
+            OutboundQueue out = cc.getOutbound();
+            if (ServerConfig.FLUSH_COALESCE && out.isEmpty() && cc.getQueuedSince() == 0)
+                cc.setQueuedSince(System.nanoTime());
+            frame.queueFor(cc);
+            Metrics.delivered.increment();
+            queued.signal();
+
+            if (out.bytes() > ServerConfig.QUEUE_HIGH_WATER)
+                overflow(out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(ClientInfo[] ccs, int from, int to, Frame frame) {
+        for (int i = from; i < to; i++)
+            send(ccs[i], frame);
+    }
+
+    @Override
+    public void send(ClientInfo cc, FileRegion region) {
+        lock.lock();
+        try {
+            if (closed || cc.isClosing()) {
+                region.release();
+                return;
+            }
+
+            OutboundQueue out = cc.getOutbound();
+            Frame.queueHistory(cc, region);
+            queued.signal();
+
+            if (out.bytes() > ServerConfig.QUEUE_HIGH_WATER)
+                overflow(out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void resume(ClientInfo cc, Runnable task) {
+        lock.lock();
+        try {
+            if (!readerDone) {
+                resumeTask = task;
+                resumed.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The client is already removed, nothing else touches it now
+        task.run();
+    }
+
+    @Override
+    public void interrupt(ClientInfo cc, Runnable task) {
+        lock.lock();
+        try {
+            if (readerDone) {
+                // The client is already removed, nothing else touches it now
+                task.run();
+                return;
+            }
+            interruptTask = task;
+        } finally {
+            lock.unlock();
+        }
+
+        // Wakes the reader up from read() with an end of stream
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            // Already closed, the reader is on its way out
+        }
+    }
+
+    @Override
+    public void close(ClientInfo cc) {
+        close();
+    }
+
+    @Override
+    public void schedule(ClientInfo cc, Runnable task, long delayMillis) {
+        timers.schedule(task, delayMillis);
+    }
+
+    @Override
+    public void closeAfterFlush(ClientInfo cc) {
+        lock.lock();
+        try {
+            cc.setClosing(true);
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private void overflow(OutboundQueue out) {
+        switch (ServerConfig.OVERFLOW_POLICY) {
+            case DROP_OLDEST:
+                while (out.bytes() > ServerConfig.QUEUE_HIGH_WATER && out.dropOldest()) ;
+                break;
+
+            case DISCONNECT:
+                closeChannel();
+                break;
+
+            case PAUSE_READ:
+                // The reader checks the queue before every read
+                if (out.bytes() > ServerConfig.QUEUE_HARD_LIMIT)
+                    closeChannel();
+                else
+                    cc.setReadPaused(true);
+                break;
+        }
+    }
+
+    // With PAUSE_READ, hold off reading until our own queue drains
+    private void awaitReadable() throws IOException {
+        lock.lock();
+        try {
+            while (cc.isReadPaused() && !closed) {
+                if (cc.getOutbound().bytes() < ServerConfig.QUEUE_LOW_WATER) {
+                    cc.setReadPaused(false);
+                    break;
+                }
+                drained.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Closing the channel wakes both threads up with an exception; lock held
+    private void closeChannel() {
+        if (closed) return;
+
+        closed = true;
+        Metrics.closed.increment();
+        cc.getOutbound().clear();
+        queued.signalAll();
+        drained.signalAll();
+        resumed.signalAll();
+
+        try {
+            channel.close();
+        } catch (IOException ie) {
+            Log.warn("Error closing socket {}: {}", channel, ie);
+        }
+    }
+
+    private void close() {
+        lock.lock();
+        try {
+            closeChannel();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
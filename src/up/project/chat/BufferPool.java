@@ -0,0 +1,93 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers for socket reads, in a few size classes
+//  buffers are cut from 1 MiB slabs of direct memory and go back to their
+//  class's free list on release, so reads never go through the JDK's hidden
+//  temporary buffer and a connection only holds one while it reads. Once
+//  the slabs reach chat.pool.maxBytes, acquire() falls back to plain heap
+//  buffers that are simply dropped on release
+final class BufferPool {
+    static private final int SLAB = 1 << 20;
+
+    // 1, 4, 16 and 64 KiB
+    static private final int MIN_SHIFT = 10;
+    static private final int CLASSES = 4;
+
+    static private final ConcurrentLinkedQueue<ByteBuffer>[] free = freeLists(CLASSES);
+
+    // Off-heap bytes taken so far, never more than POOL_MAX_BYTES
+    static private final AtomicLong slabBytes = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    // No generic array creation in Java, the empty raw array is safe to cast
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] freeLists(int n) {
+        ConcurrentLinkedQueue<ByteBuffer>[] lists = new ConcurrentLinkedQueue[n];
+        for (int i = 0; i < n; i++)
+            lists[i] = new ConcurrentLinkedQueue<>();
+        return lists;
+    }
+
+    // A cleared buffer of at least size bytes, give it back with release()
+    static ByteBuffer acquire(int size) {
+        int c = classOf(size);
+        if (c == CLASSES) {
+            Metrics.poolMisses.increment();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer b = free[c].poll();
+        if (b == null && carve(c))
+            b = free[c].poll();
+
+        if (b == null) {
+            Metrics.poolMisses.increment();
+            return ByteBuffer.allocate(1 << (MIN_SHIFT + 2 * c));
+        }
+
+        Metrics.poolInUse.add(b.capacity());
+        b.clear();
+        return b;
+    }
+
+    static void release(ByteBuffer b) {
+        if (!b.isDirect()) return;
+
+        Metrics.poolInUse.add(-b.capacity());
+        free[classOf(b.capacity())].add(b);
+    }
+
+    static long slabBytes() {
+        return slabBytes.get();
+    }
+
+    private static int classOf(int size) {
+        int c = 0;
+        while (c < CLASSES && size > 1 << (MIN_SHIFT + 2 * c)) c++;
+        return c;
+    }
+
+    // Cut a new slab into buffers of class c, false when the cap is reached
+    private static boolean carve(int c) {
+        long used;
+        do {
+            used = slabBytes.get();
+            if (used + SLAB > ServerConfig.POOL_MAX_BYTES)
+                return false;
+        } while (!slabBytes.compareAndSet(used, used + SLAB));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB);
+        int size = 1 << (MIN_SHIFT + 2 * c);
+        for (int at = 0; at < SLAB; at += size) {
+            slab.limit(at + size).position(at);
+            free[c].add(slab.slice());
+        }
+        return true;
+    }
+}
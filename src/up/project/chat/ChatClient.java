@@ -1,13 +1,14 @@
 package up.project.chat;
 
 import java.io.*;
-import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 
 
 public class ChatClient {
@@ -21,8 +22,17 @@ public class ChatClient {
     // Se for necessário adicionar variáveis ao objecto ChatClient, devem
     // ser colocadas aqui
 
-    static private BufferedWriter writeBuffer;
-    static private Socket s;
+    // Most screen updates per second, lines arriving in between are shown together
+    static private final int FPS = Integer.getInteger("chat.client.fps", 30);
+
+    // Lines kept in the text area, older ones are trimmed
+    static private final int SCROLLBACK = Integer.getInteger("chat.client.scrollback", 5000);
+
+    // Networking, see ClientCore
+    private final ClientCore core;
+
+    // Server lines waiting for the next screen update
+    private final ConcurrentLinkedQueue<String> incoming = new ConcurrentLinkedQueue<>();
 
     // Método a usar para acrescentar uma string à caixa de texto
     // * NÃO MODIFICAR *
@@ -67,8 +77,22 @@ public class ChatClient {
         // Se for necessário adicionar código de inicialização ao
         // construtor, deve ser colocado aqui
 
-        s = new Socket(server, port);
-        writeBuffer = new BufferedWriter( new OutputStreamWriter(s.getOutputStream()) );
+        // -Dchat.binary=true and -Dchat.compress=true pick the wire format
+        core = new ClientCore(server, port, Boolean.getBoolean("chat.binary"), Boolean.getBoolean("chat.compress"));
+        if (Boolean.getBoolean("chat.binary") && !core.isBinary()) {
+            printMessage("Server does not speak binary, staying with text\n");
+        }
+        if (Boolean.getBoolean("chat.compress") && !core.isCompressed()) {
+            printMessage("Server does not compress, staying uncompressed\n");
+        }
+
+        // Screen updates run on the EDT at most FPS times a second
+        new javax.swing.Timer(1000 / FPS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                render();
+            }
+        }).start();
     }
 
 
@@ -78,26 +102,57 @@ public class ChatClient {
         // Show in our client
         printMessage(message + '\n');
 
-        // Send to server
-        if (message.startsWith("/") && !(message.startsWith("/nick ") || message.startsWith("/join ") || message.startsWith("/leave") ||   message.startsWith("/bye") || message.startsWith("/priv "))) {
-            message = "/" + message;
-        }
-        writeBuffer.write(message);
-        writeBuffer.newLine();
-        writeBuffer.flush();
-
-
+        // Send to server, the core's writer does the I/O off the EDT
+        core.send(message);
     }
 
 
     // Método principal do objecto
     public void run() throws IOException {
-        BufferedReader readerBuffer = new BufferedReader( new InputStreamReader(s.getInputStream()) );
+        core.start(new ClientCore.Listener() {
+            @Override
+            public void onLine(String line) {
+                incoming.add(line);
+            }
 
-        String response;
+            @Override
+            public void onClose() {
+            }
+        });
+
+        try {
+            core.awaitClose();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Show everything that came in since the last update with a single append
+    private void render() {
+        String line = incoming.poll();
+        if (line == null) {
+            return;
+        }
+
+        StringBuilder shown = new StringBuilder();
+        do {
+            shown.append(processResponse(line));
+        } while ((line = incoming.poll()) != null);
+
+        printMessage(shown.toString());
+        trimScrollback();
+    }
 
-        while ((response = readerBuffer.readLine()) != null && s.isConnected() ) {
-            printMessage(processResponse(response));
+    private void trimScrollback() {
+        int excess = chatArea.getLineCount() - SCROLLBACK;
+        if (excess <= 0) {
+            return;
+        }
+
+        try {
+            chatArea.replaceRange("", 0, chatArea.getLineEndOffset(excess - 1));
+        } catch (BadLocationException e) {
+            // The count came from the same document
         }
     }
 
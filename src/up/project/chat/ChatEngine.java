@@ -0,0 +1,983 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Protocol state and command handling, shared by every server mode
+//  the transports feed it parsed commands and deliver the frames it produces
+class ChatEngine {
+    private final Registry registry = new Registry();
+
+    // Room history on disk, null unless chat.history.dir is set
+    private final History history = History.open(ServerConfig.HISTORY_DIR);
+
+    // Link to the other nodes, null unless chat.cluster.nodes is set
+    private final Cluster cluster = Cluster.open(this, registry);
+
+    // Private messages for nicks nobody holds, null unless chat.outbox.dir is
+    //  set; a clustered nick may be claimed on another node, so not with a cluster
+    private final Outbox outbox = cluster == null ? Outbox.open(ServerConfig.OUTBOX_DIR, registry) : null;
+
+    // Nothing here takes a lock: a client's own state (nick, room, framer) is
+    //  only touched by the thread serving it, the shared tables are in Registry
+
+    static private final SecureRandom tokens = new SecureRandom();
+
+    // Sessions saved by the previous run, by token and by nick, until resumeUntil
+    private final ConcurrentHashMap<Long, Snapshot.Session> resumable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Symbol, Snapshot.Session> reservedNicks = new ConcurrentHashMap<>();
+    private volatile long resumeUntil;
+
+    // Set on shutdown, leaving clients no longer tell their rooms
+    private volatile boolean stopping;
+
+    // Bring up the links to the other nodes, if clustered, and take back the
+    //  sessions of the previous run
+    void start() throws IOException {
+        if (ServerConfig.SNAPSHOT_FILE != null)
+            restore(Snapshot.read(Paths.get(ServerConfig.SNAPSHOT_FILE), ServerConfig.SNAPSHOT_GRACE_MILLIS));
+
+        if (cluster != null)
+            cluster.start();
+    }
+
+    private void restore(List<Snapshot.Session> sessions) {
+        for (Snapshot.Session s : sessions) {
+            resumable.put(s.token, s);
+            // The reservation keeps the reference
+            Symbol nick = SymbolTable.intern(s.nick);
+            if (reservedNicks.put(nick, s) != null)
+                SymbolTable.release(nick);
+        }
+        resumeUntil = TimingWheel.now() + ServerConfig.SNAPSHOT_GRACE_MILLIS;
+
+        if (!sessions.isEmpty())
+            Log.info("Restored {} sessions, kept for {} s", sessions.size(), ServerConfig.SNAPSHOT_GRACE_MILLIS / 1000);
+    }
+
+    // Stop for good, called once the server no longer accepts: every client
+    //  gets a resume token (with a snapshot file), BYE and until the drain
+    //  deadline to receive what is queued for it
+    void shutdown() {
+        stopping = true;
+        long deadline = TimingWheel.now() + ServerConfig.SHUTDOWN_DRAIN_MILLIS;
+
+        List<ClientInfo> clients = new ArrayList<>(registry.clients());
+        Log.info("Shutting down, {} clients", clients.size());
+
+        // Each client is seen out by the thread serving it
+        Queue<Snapshot.Session> sessions = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(clients.size());
+        for (ClientInfo cc : clients) {
+            cc.getTransport().interrupt(cc, () -> {
+                try {
+                    stop(cc, sessions);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            done.await(Math.max(0, deadline - TimingWheel.now()), TimeUnit.MILLISECONDS);
+
+            if (ServerConfig.SNAPSHOT_FILE != null) {
+                try {
+                    Snapshot.write(Paths.get(ServerConfig.SNAPSHOT_FILE), sessions);
+                    Log.info("Saved {} sessions to {}", sessions.size(), ServerConfig.SNAPSHOT_FILE);
+                } catch (IOException e) {
+                    Log.error("Cannot save sessions to {}: {}", ServerConfig.SNAPSHOT_FILE, e);
+                }
+            }
+
+            // Sockets close as their BYE goes out
+            while (Metrics.open() > 0 && TimingWheel.now() < deadline)
+                Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (Metrics.open() > 0)
+            Log.warn("{} connections still had output queued at the drain deadline", Metrics.open());
+
+        if (outbox != null)
+            outbox.close();
+    }
+
+    private void stop(ClientInfo cc, Queue<Snapshot.Session> sessions) {
+        // Gone meanwhile
+        if (!registry.hasClient(cc))
+            return;
+
+        if (ServerConfig.SNAPSHOT_FILE != null && cc.getNick() != null) {
+            Room room = cc.getRoom();
+            Snapshot.Session s = new Snapshot.Session(tokens.nextLong(), cc.getNick(),
+                    room == null ? null : room.getName());
+            sessions.add(s);
+            messageClient(new Frame(Frame.RESUME, null, FrameBuilder.start().put(Long.toString(s.token)).seal()), cc);
+        }
+        leaveChat(cc);
+    }
+
+    ClientInfo newClient(SocketChannel sc, Transport transport) {
+        ClientInfo cc = new ClientInfo(registry.newId(), sc, transport);
+        registry.addClient(cc);
+        return cc;
+    }
+
+    // Must run on the thread serving cc, safe to call more than once
+    void deleteClient(ClientInfo cc) {
+        if (registry.removeClient(cc)) {
+            switch (cc.getState()) {
+                case ClientInfo.STATE_IN:
+                    removeFromRoom(cc);
+
+                case ClientInfo.STATE_OUT:
+                    registry.releaseNick(cc.getNickSymbol(), cc);
+                    if (cluster != null)
+                        cluster.releaseNick(cc.getNick());
+            }
+        }
+    }
+
+    private void removeFromRoom(ClientInfo cc) {
+        Room room = cc.getRoom();
+
+        if (room != null) {
+            cc.setRoom(null);
+
+            //Remove member, the room goes away when it is empty
+            boolean others = registry.leave(room, cc);
+            RoomLog log = cc.getRoomLog();
+            if (log != null) {
+                cc.setRoomLog(null);
+                history.release(room.getSymbol(), log);
+            }
+            if (cluster != null)
+                cluster.left(room.getName());
+            else if (!others)
+                return;
+
+            // On shutdown everybody leaves, nobody needs to hear it
+            if (stopping)
+                return;
+
+            messageRoomAll(new Frame(Frame.LEFT, cc.getNickSymbol(), null), room);
+
+        }
+
+    }
+
+    static private final boolean LIMITED = ServerConfig.CLIENT_LIMIT != null
+            || ServerConfig.NICK_LIMIT != null || ServerConfig.ROOM_LIMIT != null;
+
+    private static boolean isRoomMessage(byte[] line, int off, int len, boolean binary) {
+        if (len == 0)
+            return false;
+        if (binary)
+            return line[off] == Frame.REQ_SEND;
+        return line[off] != '/' || (len > 1 && line[off + 1] == '/');
+    }
+
+    // Check the line against every limit that applies before it runs, tokens
+    //  are only taken once all of them agree; false when it must not run now
+    private boolean admit(ClientInfo cc, boolean toRoom) {
+        long now = System.nanoTime();
+
+        TokenBucket client = cc.getLimiter();
+        Symbol nick = cc.getNickSymbol();
+        TokenBucket byNick = ServerConfig.NICK_LIMIT == null || nick == null
+                ? null : nick.limiter(ServerConfig.NICK_LIMIT);
+        Room room = cc.getRoom();
+        TokenBucket byRoom = toRoom && room != null ? room.getLimiter() : null;
+
+        if (!admit(cc, client, now) || !admit(cc, byNick, now) || !admit(cc, byRoom, now))
+            return false;
+
+        if (client != null) client.take();
+        if (byNick != null) byNick.take();
+        if (byRoom != null) byRoom.take();
+        return true;
+    }
+
+    private boolean admit(ClientInfo cc, TokenBucket bucket, long now) {
+        if (bucket == null)
+            return true;
+
+        long delay = bucket.delay(now);
+        if (delay == 0)
+            return true;
+
+        switch (bucket.limit().action) {
+            case DROP:
+                Metrics.limitedDrops.increment();
+                break;
+
+            case DELAY:
+                // Read the line again once there is a token, nothing is read meanwhile
+                Metrics.limitedDelays.increment();
+                cc.getFramer().unread();
+                cc.setSuspended(true);
+                Transport transport = cc.getTransport();
+                transport.schedule(cc, () -> transport.resume(cc, () -> cc.setSuspended(false)), delay);
+                break;
+
+            case DISCONNECT:
+                Metrics.limitedDisconnects.increment();
+                Log.debug("Closing {}: over its rate limit", cc.getChannel());
+                cc.setClosing(true);
+                cc.getTransport().close(cc);
+                break;
+        }
+        return false;
+    }
+
+    // Handshake, idle and ping timeouts of one connection, run by its transport's
+    //  timer thread; returns the millis until the next check is due, or -1
+    //  when there is nothing left to watch
+    long checkTimeouts(ClientInfo cc, long now) {
+        if (cc.isClosing() || !cc.getChannel().isOpen())
+            return -1;
+
+        long next = Long.MAX_VALUE;
+
+        if (ServerConfig.HANDSHAKE_TIMEOUT_MILLIS > 0 && cc.getNick() == null) {
+            long left = cc.getConnectedAt() + ServerConfig.HANDSHAKE_TIMEOUT_MILLIS - now;
+            if (left <= 0) {
+                timeout(cc, "no nick");
+                return -1;
+            }
+            next = left;
+        }
+
+        if (ServerConfig.IDLE_TIMEOUT_MILLIS > 0) {
+            long left = cc.getLastInput() + ServerConfig.IDLE_TIMEOUT_MILLIS - now;
+            if (left <= 0) {
+                timeout(cc, "idle");
+                return -1;
+            }
+            next = Math.min(next, left);
+        }
+
+        if (ServerConfig.PING_INTERVAL_MILLIS > 0) {
+            long left = Math.max(cc.getLastInput(), cc.getLastPing()) + ServerConfig.PING_INTERVAL_MILLIS - now;
+            if (left <= 0) {
+                Metrics.pings.increment();
+                cc.setLastPing(now);
+                messageClient(Frames.PING, cc);
+                left = ServerConfig.PING_INTERVAL_MILLIS;
+            }
+            next = Math.min(next, left);
+        }
+
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    private void timeout(ClientInfo cc, String reason) {
+        Metrics.timeouts.increment();
+        Log.debug("Closing {}: {}", cc.getChannel(), reason);
+        cc.getTransport().close(cc);
+    }
+
+    // Command names, matched on the raw line bytes
+    static private final byte[] CMD_NICK = Frames.bytes("/nick ");
+    static private final byte[] CMD_JOIN = Frames.bytes("/join ");
+    static private final byte[] CMD_LEAVE = Frames.bytes("/leave");
+    static private final byte[] CMD_BYE = Frames.bytes("/bye");
+    static private final byte[] CMD_PRIV = Frames.bytes("/priv ");
+    static private final byte[] CMD_STATS = Frames.bytes("/stats");
+    static private final byte[] CMD_BINARY = Frames.bytes("/binary");
+    static private final byte[] CMD_COMPRESS = Frames.bytes("/compress");
+    static private final byte[] CMD_PONG = Frames.bytes("/pong");
+    static private final byte[] CMD_RESUME = Frames.bytes("/resume ");
+
+    void processCommands(ClientInfo cc) {
+        LineFramer framer = cc.getFramer();
+        while (!cc.isSuspended()) {
+            int res = framer.next();
+            if (res == LineFramer.NEED_MORE) {
+                return;
+            }
+            if (res == LineFramer.TOO_LONG) {
+                Metrics.command(Metrics.CMD_TOO_LONG);
+                commandError(cc);
+
+                // A broken packet, nothing after it can be read: say so and go
+                if (framer.isCorrupt()) {
+                    Log.debug("Closing {}: corrupt packet", cc.getChannel());
+                    deleteClient(cc);
+                    cc.getTransport().closeAfterFlush(cc);
+                    return;
+                }
+                continue;
+            }
+
+            byte[] line = framer.array();
+            int off = framer.lineStart();
+            int len = framer.lineLength();
+
+            if (LIMITED && !admit(cc, isRoomMessage(line, off, len, framer.isBinary()))) {
+                // Delayed or disconnected, a dropped line is just skipped
+                if (cc.isSuspended() || cc.isClosing())
+                    return;
+                continue;
+            }
+
+            if (framer.isBinary()) {
+                if (!processRequest(line, off, len, cc))
+                    return;
+                continue;
+            }
+
+            if (len == 0) {
+                continue;
+            }
+
+            // Plain message, the most common case by far
+            if (line[off] != '/') {
+                Metrics.command(Metrics.CMD_MESSAGE);
+                sendMessage(line, off, len, cc);
+                continue;
+            }
+
+            // Only the arguments that are names get decoded
+            switch (len > 1 ? line[off + 1] : 0) {
+                case 'n':
+                    if (matches(line, off, len, CMD_NICK)) {
+                        Metrics.command(Metrics.CMD_NICK);
+                        tryGiveNick(decode(line, off + CMD_NICK.length, off + len), cc);
+                        continue;
+                    }
+                    break;
+
+                case 'j':
+                    if (matches(line, off, len, CMD_JOIN)) {
+                        Metrics.command(Metrics.CMD_JOIN);
+                        joinForum(decode(line, off + CMD_JOIN.length, off + len), cc);
+                        continue;
+                    }
+                    break;
+
+                case 'l':
+                    if (matches(line, off, len, CMD_LEAVE)) {
+                        Metrics.command(Metrics.CMD_LEAVE);
+                        leaveForum(cc);
+                        continue;
+                    }
+                    break;
+
+                case 'b':
+                    if (matches(line, off, len, CMD_BYE)) {
+                        Metrics.command(Metrics.CMD_BYE);
+                        leaveChat(cc);
+                        return;
+                    }
+                    if (matches(line, off, len, CMD_BINARY)) {
+                        // OK is the last text frame, both ways are binary from here
+                        messageClient(Frame.upgrade(), cc);
+                        framer.setBinary(true);
+                        continue;
+                    }
+                    break;
+
+                case 'p':
+                    if (matches(line, off, len, CMD_PRIV)) {
+                        Metrics.command(Metrics.CMD_PRIV);
+                        sendPrivateMessage(line, off + CMD_PRIV.length, off + len, cc);
+                        continue;
+                    }
+                    if (matches(line, off, len, CMD_PONG)) {
+                        // Reading it was all a PING asked for
+                        continue;
+                    }
+                    break;
+
+                case 'r':
+                    if (matches(line, off, len, CMD_RESUME)) {
+                        Metrics.command(Metrics.CMD_RESUME);
+                        resume(decode(line, off + CMD_RESUME.length, off + len), cc);
+                        continue;
+                    }
+                    break;
+
+                case 'c':
+                    if (matches(line, off, len, CMD_COMPRESS)) {
+                        startCompression(cc);
+                        continue;
+                    }
+                    break;
+
+                case 's':
+                    if (matches(line, off, len, CMD_STATS)) {
+                        Metrics.command(Metrics.CMD_STATS);
+                        sendStats(cc);
+                        continue;
+                    }
+                    break;
+
+                case '/':
+                    // Escaped message starting with '/'
+                    Metrics.command(Metrics.CMD_MESSAGE);
+                    sendMessage(line, off + 1, len - 1, cc);
+                    continue;
+            }
+
+            Metrics.command(Metrics.CMD_UNKNOWN);
+            commandError(cc);
+        }
+
+    }
+
+    // OK is the last unpacked frame, both ways are packed from here
+    private void startCompression(ClientInfo cc) {
+        if (cc.getFramer().isCompressed()) {
+            commandError(cc);
+            return;
+        }
+
+        messageClient(Frame.compress(), cc);
+        cc.getFramer().setCompressed(true);
+    }
+
+    // A binary request in line[off, off + len): opcode, varint id, payload
+    //  returns false once the client said bye
+    private boolean processRequest(byte[] line, int off, int len, ClientInfo cc) {
+        int end = off + len;
+        byte op = len > 0 ? line[off] : 0;
+
+        int pos = off + 1, id = 0;
+        for (int shift = 0; pos < end && shift < 32; shift += 7) {
+            byte b = line[pos++];
+            id |= (b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+
+        switch (op) {
+            case Frame.REQ_SEND:
+                Metrics.command(Metrics.CMD_MESSAGE);
+                sendMessage(line, pos, end - pos, cc);
+                return true;
+
+            case Frame.REQ_NICK:
+                Metrics.command(Metrics.CMD_NICK);
+                tryGiveNick(decode(line, pos, end), cc);
+                return true;
+
+            case Frame.REQ_JOIN:
+                Metrics.command(Metrics.CMD_JOIN);
+                joinForum(decode(line, pos, end), cc);
+                return true;
+
+            case Frame.REQ_LEAVE:
+                Metrics.command(Metrics.CMD_LEAVE);
+                leaveForum(cc);
+                return true;
+
+            case Frame.REQ_BYE:
+                Metrics.command(Metrics.CMD_BYE);
+                leaveChat(cc);
+                return false;
+
+            case Frame.REQ_PRIV:
+                Metrics.command(Metrics.CMD_PRIV);
+                if (id == 0) {
+                    sendPrivateMessage(line, pos, end, cc);
+                } else {
+                    // Routed on the id, as the client was told it, the target name is never decoded
+                    Symbol to = cc.known(id);
+                    if (to == null)
+                        to = SymbolTable.byId(id);
+                    sendPrivate(to == null ? null : to.name, to == null ? null : SymbolTable.lookup(to.name),
+                            line, pos, end, cc);
+                }
+                return true;
+
+            case Frame.REQ_STATS:
+                Metrics.command(Metrics.CMD_STATS);
+                sendStats(cc);
+                return true;
+
+            case Frame.REQ_COMPRESS:
+                startCompression(cc);
+                return true;
+
+            case Frame.REQ_PONG:
+                return true;
+
+            case Frame.REQ_RESUME:
+                Metrics.command(Metrics.CMD_RESUME);
+                resume(decode(line, pos, end), cc);
+                return true;
+        }
+
+        Metrics.command(Metrics.CMD_UNKNOWN);
+        commandError(cc);
+        return true;
+    }
+
+    private static boolean matches(byte[] line, int off, int len, byte[] cmd) {
+        if (len < cmd.length) return false;
+
+        for (int i = 0; i < cmd.length; i++) {
+            if (line[off + i] != cmd[i]) return false;
+        }
+        return true;
+    }
+
+    private static String decode(byte[] line, int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    // line[from, to) is "<nick> <message>"
+    private void sendPrivateMessage(byte[] line, int from, int to, ClientInfo cc) {
+        int separate = from;
+        while (separate < to && line[separate] != ' ') separate++;
+
+        if (separate == to) {
+            commandError(cc);
+            return;
+        }
+
+        // Not interned if unknown here, the nick may still live on another node
+        String to_nick = decode(line, from, separate);
+        sendPrivate(to_nick, SymbolTable.lookup(to_nick), line, separate + 1, to, cc);
+    }
+
+    // line[from, to) is the message for to_nick, to_symbol is null if it was never interned
+    private void sendPrivate(String to_nick, Symbol to_symbol, byte[] line, int from, int to, ClientInfo cc) {
+        if (to_nick == null || cc.getNick() == null) {
+            commandError(cc);
+            return;
+        }
+
+        ClientInfo cd = registry.getByNick(to_symbol);
+        if (cd == null && cluster == null && (outbox == null || !isValidName(to_nick))) {
+            commandError(cc);
+            return;
+        }
+
+        // From a text line the frame is built in its final text form, a binary
+        //  payload may hold newlines and keeps them
+        Frame msg = cc.getFramer().isBinary()
+                ? new Frame(Frame.PRIVATE, cc.getNickSymbol(), FrameBuilder.start().put(line, from, to - from).seal())
+                : Frame.privateText(cc.getNickSymbol(), line, from, to - from);
+
+        if (cd != null && (outbox == null || !outbox.isPending(to_symbol))) {
+            // The common case, straight to the recipient's queue
+            messageClient(msg, cd);
+        } else if (outbox != null) {
+            // Kept until the nick is claimed, behind anything kept before
+            Symbol nick = SymbolTable.intern(to_nick);
+            try {
+                switch (outbox.store(nick, msg)) {
+                    case Outbox.HELD:
+                        cd = registry.getByNick(nick);
+                        if (cd == null) {
+                            commandError(cc);
+                            return;
+                        }
+                        messageClient(msg, cd);
+                        break;
+                    case Outbox.FULL:
+                        commandError(cc);
+                        return;
+                }
+            } finally {
+                SymbolTable.release(nick);
+            }
+        } else if (!cluster.forwardPrivate(to_nick, msg)) {
+            commandError(cc);
+            return;
+        }
+        commandComplete(cc);
+    }
+
+    private void sendMessage(byte[] line, int off, int len, ClientInfo cc) {
+        if (cc.getState() != ClientInfo.STATE_IN) {
+            commandError(cc);
+            return;
+        }
+
+        // Copied once from the input line, every member gets a view of the same bytes
+        Frame msg = new Frame(Frame.MESSAGE, cc.getNickSymbol(),
+                FrameBuilder.start().put(line, off, len).seal());
+
+        Room room = cc.getRoom();
+        RoomLog log = cc.getRoomLog();
+
+        ClientInfo[] members;
+        ClientInfo[][] shards;
+        if (log == null) {
+            members = room.members();
+            shards = room.shards();
+        } else {
+            // Logged and the members taken under the log's lock, so a client
+            //  joining at the same time gets it either replayed or live, not both
+            synchronized (log) {
+                try {
+                    log.append(msg.text());
+                } catch (IOException e) {
+                    Log.warn("Cannot write history of room {}: {}", room.getName(), e);
+                }
+                members = room.members();
+                shards = room.shards();
+            }
+        }
+
+        // The sender's own copy first, so in a sharded room it is not
+        //  overtaken by the answers to what the sender does next
+        messageClient(msg, cc);
+        messageMembers(msg, members, shards, cc);
+        if (cluster != null)
+            cluster.forwardRoom(room.getName(), msg);
+    }
+
+    // Admin command, only answered on connections from this machine
+    private void sendStats(ClientInfo cc) {
+        if (!isLocal(cc)) {
+            commandError(cc);
+            return;
+        }
+
+        messageClient(new Frame(Frame.STATS, null, FrameBuilder.start().put(Metrics.summary()).seal()), cc);
+        commandComplete(cc);
+    }
+
+    private static boolean isLocal(ClientInfo cc) {
+        try {
+            SocketAddress remote = cc.getChannel() == null ? null : cc.getChannel().getRemoteAddress();
+            return remote instanceof InetSocketAddress
+                    && ((InetSocketAddress) remote).getAddress().isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void leaveChat(ClientInfo cc) {
+        messageClient(Frames.BYE, cc);
+
+        // Remove client from tables right away, the socket itself stays
+        //  open until BYE has been written
+        deleteClient(cc);
+        cc.getTransport().closeAfterFlush(cc);
+    }
+
+    private void leaveForum(ClientInfo cc) {
+        if (cc.getRoom() == null) {
+            commandError(cc);
+            return;
+        }
+
+        removeFromRoom(cc);
+        commandComplete(cc);
+    }
+
+    private void joinForum(String new_forum, ClientInfo cc) {
+        // Limit naming
+        if (!isValidName(new_forum)){
+            commandError(cc);
+            return;
+        }
+
+        if (cc.getNick() == null) {
+            commandError(cc);
+            return;
+        }
+
+        removeFromRoom(cc);
+
+        // Held until cc is in, the room then keeps it
+        Symbol name = SymbolTable.intern(new_forum);
+        RoomLog log = history == null ? null : history.acquire(name);
+        if (history == null || log != null) {
+            enterRoom(name, log, cc);
+            SymbolTable.release(name);
+            return;
+        }
+
+        // Opening the log touches the disk, so the history thread does it;
+        //  nothing is read from cc meanwhile
+        cc.setSuspended(true);
+        history.acquire(name, opened -> cc.getTransport().resume(cc, () -> {
+            cc.setSuspended(false);
+
+            // Gone while waiting
+            if (!registry.hasClient(cc)) {
+                if (opened != null)
+                    history.release(name, opened);
+            } else {
+                enterRoom(name, opened, cc);
+            }
+            SymbolTable.release(name);
+        }));
+    }
+
+    // log is the room's history with a reference taken for cc, null if it has none
+    private void enterRoom(Symbol name, RoomLog log, ClientInfo cc) {
+        Room room;
+        if (log == null) {
+            room = registry.join(name, cc);
+        } else {
+            // Queue the replay before any message sent after the join
+            synchronized (log) {
+                room = registry.join(name, cc);
+                replay(log, cc);
+            }
+        }
+        cc.setRoom(room);
+        cc.setRoomLog(log);
+        if (cluster != null)
+            cluster.joined(name.name);
+
+        messageRoomExcept(new Frame(Frame.JOINED, cc.getNickSymbol(), null), room, cc);
+
+        commandComplete(cc);
+    }
+
+    // Recent messages go straight from the history files to the socket
+    private void replay(RoomLog log, ClientInfo cc) {
+        long since = ServerConfig.HISTORY_REPLAY_SECONDS > 0
+                ? System.currentTimeMillis() - ServerConfig.HISTORY_REPLAY_SECONDS * 1000
+                : 0;
+
+        for (FileRegion region : log.replay(ServerConfig.HISTORY_REPLAY, since))
+            cc.getTransport().send(cc, region);
+    }
+
+    // A session saved by the previous run: its nick and then its room, with
+    //  an OK (or ERROR) for each as if the client had asked for them
+    private void resume(String token, ClientInfo cc) {
+        Snapshot.Session s;
+        try {
+            s = cc.getNick() == null ? resumable.remove(Long.parseLong(token)) : null;
+        } catch (NumberFormatException e) {
+            s = null;
+        }
+
+        if (s == null || TimingWheel.now() > resumeUntil) {
+            commandError(cc);
+            return;
+        }
+
+        Symbol reserved = SymbolTable.lookup(s.nick);
+        if (reserved != null && reservedNicks.remove(reserved, s))
+            SymbolTable.release(reserved);
+        cc.setResumeRoom(s.room);
+        tryGiveNick(s.nick, cc);
+
+        // Unless the nick waits on another node, see nickClaimed
+        if (!cc.isSuspended())
+            rejoin(cc);
+    }
+
+    private void rejoin(ClientInfo cc) {
+        String room = cc.takeResumeRoom();
+        if (room != null && cc.getNick() != null)
+            joinForum(room, cc);
+    }
+
+    // Saved sessions keep their nicks until the grace period is over
+    private boolean isReserved(Symbol nick) {
+        if (reservedNicks.isEmpty() || !reservedNicks.containsKey(nick))
+            return false;
+
+        if (TimingWheel.now() > resumeUntil) {
+            for (Symbol reserved : reservedNicks.keySet()) {
+                if (reservedNicks.remove(reserved) != null)
+                    SymbolTable.release(reserved);
+            }
+            resumable.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private void tryGiveNick(String new_nick, ClientInfo cc) {
+        // Limit naming
+        if (!isValidName(new_nick)){
+            commandError(cc);
+            return;
+        }
+
+        // Take the nick if it is free, fine too if we already have it; the
+        //  holder keeps a reference of its own
+        Symbol nick = SymbolTable.intern(new_nick);
+        try {
+            tryGiveNick(nick, cc);
+        } finally {
+            SymbolTable.release(nick);
+        }
+    }
+
+    private void tryGiveNick(Symbol nick, ClientInfo cc) {
+        if (isReserved(nick)) {
+            commandError(cc);
+            return;
+        }
+        ClientInfo cx = registry.claimNick(nick, cc);
+        if (cx != cc) {
+            commandError(cc);
+            return;
+        }
+        if (nick == cc.getNickSymbol()) {
+            commandComplete(cc);
+            return;
+        }
+
+        // Free here, the nick's home node has the last word
+        if (cluster != null) {
+            switch (cluster.claimNick(nick.name, cc)) {
+                case Cluster.DENIED:
+                    registry.releaseNick(nick, cc);
+                    commandError(cc);
+                    return;
+
+                case Cluster.PENDING:
+                    cc.setSuspended(true);
+                    return;
+            }
+        }
+
+        giveNick(nick, cc);
+    }
+
+    // Answer from the nick's home node, run on the thread serving cc
+    void nickClaimed(ClientInfo cc, String nick, boolean granted) {
+        cc.setSuspended(false);
+        // Claimed here meanwhile, so still interned
+        Symbol symbol = SymbolTable.lookup(nick);
+
+        // Gone while waiting
+        if (!registry.hasClient(cc)) {
+            registry.releaseNick(symbol, cc);
+            if (granted)
+                cluster.releaseNick(nick);
+            return;
+        }
+
+        if (!granted) {
+            registry.releaseNick(symbol, cc);
+            cc.takeResumeRoom();
+            commandError(cc);
+            return;
+        }
+
+        giveNick(symbol, cc);
+        // Unless waiting for the outbox, which rejoins once delivered
+        if (!cc.isSuspended())
+            rejoin(cc);
+    }
+
+    private void giveNick(Symbol new_nick, ClientInfo cc) {
+        // Nick is ours now
+        //   release the old one and tell the room (if state inside)
+        Symbol old_symbol = cc.getNickSymbol();
+        registry.releaseNick(old_symbol, cc);
+        cc.setNick(new_nick);
+
+        if (cluster != null) {
+            if (old_symbol != null)
+                cluster.releaseNick(old_symbol.name);
+            cluster.nickHeld(new_nick.name);
+        }
+
+        Room room = cc.getRoom();
+        if (room != null) {
+            messageRoomExcept(new Frame(Frame.NEWNICK, old_symbol,
+                    FrameBuilder.start().put(cc.getNickBytes()).seal()), room, cc);
+        }
+
+        // What was sent to the nick while nobody held it, before the OK; the
+        //  file is read on the outbox thread, cc waits for it
+        if (outbox != null && outbox.isPending(new_nick)) {
+            cc.setSuspended(true);
+            outbox.deliver(new_nick, cc, () -> {
+                cc.setSuspended(false);
+                if (registry.hasClient(cc)) {
+                    commandComplete(cc);
+                    rejoin(cc);
+                }
+            });
+            return;
+        }
+
+        commandComplete(cc);
+    }
+
+    private boolean isValidName(String new_name) {
+        // Names go out inside text lines, so no empty ones, no spaces and no
+        //  control characters (a binary client could otherwise put a newline in)
+        if (new_name.isEmpty())
+            return false;
+        for (int i = 0; i < new_name.length(); i++) {
+            if (new_name.charAt(i) <= ' ' || new_name.charAt(i) == 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    private void commandComplete(ClientInfo cc) {
+        messageClient(Frames.OK, cc);
+    }
+
+    private void commandError(ClientInfo cc) {
+        messageClient(Frames.ERROR, cc);
+    }
+
+    private void messageRoomAll(Frame msg, Room room) {
+        messageRoomExcept(msg, room, null);
+    }
+
+    private void messageRoomExcept(Frame msg, Room room, ClientInfo exc) {
+        messageMembers(msg, room.members(), room.shards(), exc);
+        if (cluster != null)
+            cluster.forwardRoom(room.getName(), msg);
+    }
+
+    // A room frame from another node, for the members here
+    void deliverRoom(String name, Frame msg) {
+        Room room = registry.getRoom(SymbolTable.lookup(name));
+        if (room != null)
+            messageMembers(msg, room.members(), room.shards(), null);
+    }
+
+    // A private frame from another node
+    void deliverPrivate(String nick, Frame msg) {
+        ClientInfo cd = registry.getByNick(SymbolTable.lookup(nick));
+        if (cd != null)
+            messageClient(msg, cd);
+    }
+
+    // Large rooms go to the fan-out threads, shards is null for the others
+    private void messageMembers(Frame msg, ClientInfo[] members, ClientInfo[][] shards, ClientInfo exc) {
+        Metrics.fanout.record(members.length);
+
+        if (shards != null) {
+            Fanout.send(msg, shards, exc);
+            return;
+        }
+
+        for (ClientInfo member : members) {
+            if (member == exc) continue;
+
+            messageClient(msg, member);
+        }
+    }
+
+    // The client's transport queues the encoding the client speaks
+    private void messageClient(Frame msg, ClientInfo cc) {
+        cc.getTransport().send(cc, msg);
+    }
+}
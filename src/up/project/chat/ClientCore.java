@@ -0,0 +1,458 @@
+package up.project.chat;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Networking side of a chat client, without any GUI
+//  connects and negotiates the binary and compressed modes up front, then one
+//  thread reads and one writes (virtual threads when the runtime has them).
+//  send() only queues, so the caller never waits on the socket; everything
+//  the server says reaches the listener as lines of the text protocol,
+//  whatever the wire format, and PINGs are answered here. When the server
+//  restarts and hands out a resume token, the core reconnects by itself
+//  (after a random pause, so the clients of a server do not all come back
+//  at once) and resumes the session; lines sent meanwhile wait in the queue
+public final class ClientCore implements Closeable {
+
+    public interface Listener {
+        // A server line, "MESSAGE nick text" and so on, on the reader thread
+        void onLine(String line);
+
+        // The connection is gone, on the reader thread
+        void onClose();
+    }
+
+    // Queued to stop the writer
+    static private final String STOP = new String();
+
+    // Longest random pause before reconnecting after a restart
+    static private final long RESUME_JITTER_MILLIS = Long.getLong("chat.client.resumeJitterMillis", 3000);
+
+    // How long to keep trying to reconnect, the server keeps sessions for a while only
+    static private final long RESUME_MILLIS = Long.getLong("chat.client.resumeSeconds", 60) * 1000;
+
+    // Largest /compress packet, well under the server's default chat.maxLine + 16
+    static private final int MAX_PACKET = Integer.getInteger("chat.client.maxPacket", 16 << 10);
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final boolean compressed;
+
+    // Replaced on reconnect, under wire
+    private volatile Socket s;
+    private volatile OutputStream out;
+    private volatile InputStream in;
+
+    // Held by the writer while it writes and by the reader while it reconnects
+    private final Object wire = new Object();
+    private boolean connected = true;
+    private volatile boolean closing;
+
+    // From the server's RESUME, just before it goes down
+    private volatile String resumeToken;
+
+    private final BlockingQueue<String> outgoing = new LinkedBlockingQueue<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    // Names of the ids the server told us about, and back
+    private final Map<Integer, String> symbols = new ConcurrentHashMap<>();
+    private final Map<String, Integer> symbolIds = new ConcurrentHashMap<>();
+
+    // Connect, then ask for the binary protocol and for packets if wanted;
+    //  either stays off if the server says no
+    public ClientCore(String host, int port, boolean binary, boolean compress) throws IOException {
+        this.host = host;
+        this.port = port;
+
+        connect();
+        this.binary = binary && upgrade();
+        this.compressed = compress && compress();
+        if (compressed)
+            pack();
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        s = socket;
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = socket.getInputStream();
+    }
+
+    private void pack() throws IOException {
+        // Packets go into the socket's buffer, flushed as before
+        out = new PackedOutputStream(out, MAX_PACKET);
+        in = new PackedInputStream(in);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Start the reader and the writer, lines go to listener from now on
+    public void start(Listener listener) {
+        startThread("chat-writer", this::writeLoop);
+        startThread("chat-reader", () -> readLoop(listener));
+    }
+
+    // Queue what the user typed, a command or a message
+    public void send(String input) {
+        outgoing.add(input);
+    }
+
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        outgoing.add(STOP);
+        s.close();
+    }
+
+    // The OK comes back as the last text line
+    private boolean upgrade() throws IOException {
+        writeLine("/binary");
+        out.flush();
+        return readTextReply().equals("OK");
+    }
+
+    private boolean compress() throws IOException {
+        if (!binary) {
+            writeLine("/compress");
+            out.flush();
+            return readTextReply().equals("OK");
+        }
+
+        writeRequest(Frame.REQ_COMPRESS, 0, "");
+        out.flush();
+
+        // Length, opcode and id of the reply, nothing more may be read unpacked
+        int length = in.read();
+        byte[] reply = new byte[Math.max(length, 0)];
+        new DataInputStream(in).readFully(reply);
+        return length == 2 && reply[0] == Frame.OK;
+    }
+
+    // Byte by byte, nothing after the reply may be consumed here
+    private String readTextReply() throws IOException {
+        StringBuilder reply = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            reply.append((char) c);
+        }
+        return reply.toString();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                String input = outgoing.take();
+                if (input == STOP) return;
+
+                synchronized (wire) {
+                    // Reconnecting, the lines wait for the resumed session
+                    while (!connected)
+                        wire.wait();
+
+                    // Write whatever is waiting, then flush once
+                    try {
+                        do {
+                            if (input == STOP) return;
+                            write(input);
+                        } while ((input = outgoing.poll()) != null);
+                        out.flush();
+                    } catch (IOException e) {
+                        // The reader sees the connection go, these lines are lost with it
+                    }
+                }
+            }
+
+        } catch (InterruptedException e) {
+            // Not ours to interrupt, stop
+        }
+    }
+
+    private void write(String input) throws IOException {
+        if (binary) {
+            writeRequest(input);
+        } else {
+            // A message that looks like a command is escaped with a second '/'
+            if (input.startsWith("/") && !(input.startsWith("/nick ") || input.startsWith("/join ") || input.startsWith("/leave") || input.startsWith("/bye") || input.startsWith("/priv ") || input.equals("/pong"))) {
+                input = "/" + input;
+            }
+            writeLine(input);
+        }
+
+        // A packet per line, however many go out in one flush
+        if (compressed)
+            ((PackedOutputStream) out).endPacket();
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    // Commands become opcodes, anything else is a message as typed
+    private void writeRequest(String input) throws IOException {
+        if (input.startsWith("/nick ")) {
+            writeRequest(Frame.REQ_NICK, 0, input.substring(6));
+        } else if (input.startsWith("/join ")) {
+            writeRequest(Frame.REQ_JOIN, 0, input.substring(6));
+        } else if (input.startsWith("/leave")) {
+            writeRequest(Frame.REQ_LEAVE, 0, "");
+        } else if (input.startsWith("/bye")) {
+            writeRequest(Frame.REQ_BYE, 0, "");
+        } else if (input.equals("/pong")) {
+            writeRequest(Frame.REQ_PONG, 0, "");
+        } else if (input.startsWith("/priv ")) {
+            // Address the target by id when we know it
+            String[] parts = input.substring(6).split(" ", 2);
+            Integer id = symbolIds.get(parts[0]);
+            if (id != null && parts.length == 2) {
+                writeRequest(Frame.REQ_PRIV, id, parts[1]);
+            } else {
+                writeRequest(Frame.REQ_PRIV, 0, input.substring(6));
+            }
+        } else {
+            writeRequest(Frame.REQ_SEND, 0, input);
+        }
+    }
+
+    private void writeRequest(byte op, int id, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        writeVarint(1 + Frame.varintSize(id) + bytes.length);
+        out.write(op);
+        writeVarint(id);
+        out.write(bytes);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void readLoop(Listener listener) {
+        try {
+            while (true) {
+                try {
+                    if (binary) {
+                        readFrames(listener);
+                    } else {
+                        readLines(listener);
+                    }
+                } catch (IOException e) {
+                    // Connection dropped
+                }
+
+                String token = resumeToken;
+                resumeToken = null;
+                if (token == null || closing || !reconnect(token))
+                    break;
+            }
+        } finally {
+            outgoing.add(STOP);
+            synchronized (wire) {
+                // Lets a writer waiting for the reconnect see the STOP
+                connected = true;
+                wire.notifyAll();
+            }
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            closed.countDown();
+            listener.onClose();
+        }
+    }
+
+    // The server went down for a restart, come back to the same session;
+    //  false if it could not be done in time
+    private boolean reconnect(String token) {
+        // Closed first, a writer stuck on the old socket lets go of wire
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Gone anyway
+        }
+        synchronized (wire) {
+            connected = false;
+        }
+
+        long until = System.currentTimeMillis() + RESUME_MILLIS;
+        long pause = ThreadLocalRandom.current().nextLong(RESUME_JITTER_MILLIS + 1);
+        while (!closing) {
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            synchronized (wire) {
+                try {
+                    connect();
+                    if (binary && !upgrade() || compressed && !compress())
+                        return false;
+                    if (compressed)
+                        pack();
+
+                    // Before anything the writer has queued meanwhile
+                    if (binary) {
+                        writeRequest(Frame.REQ_RESUME, 0, token);
+                    } else {
+                        writeLine("/resume " + token);
+                    }
+                    out.flush();
+
+                    connected = true;
+                    wire.notifyAll();
+                    return true;
+
+                } catch (IOException e) {
+                    // Not back up yet
+                }
+            }
+
+            if (System.currentTimeMillis() > until)
+                return false;
+            pause = Math.min(pause * 2 + 250, 8000);
+        }
+        return false;
+    }
+
+    private void readLines(Listener listener) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Keepalive from the server, not for the user
+            if (line.equals("PING")) {
+                send("/pong");
+                continue;
+            }
+            // The server is going down, kept for reconnecting
+            if (line.startsWith("RESUME ")) {
+                resumeToken = line.substring(7);
+                continue;
+            }
+            listener.onLine(line);
+        }
+    }
+
+    private void readFrames(Listener listener) throws IOException {
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(in));
+
+        try {
+            while (true) {
+                int length = readVarint(frames);
+                byte op = frames.readByte();
+                int id = readVarint(frames);
+
+                byte[] payload = new byte[length - 1 - Frame.varintSize(id)];
+                frames.readFully(payload);
+
+                onFrame(op, id, new String(payload, StandardCharsets.UTF_8), listener);
+            }
+        } catch (EOFException e) {
+            // Server closed the connection
+        }
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        return value;
+    }
+
+    // Hand a binary frame over as its text twin
+    private void onFrame(byte op, int id, String payload, Listener listener) {
+        String name = symbols.getOrDefault(id, "#" + id);
+
+        switch (op) {
+            case Frame.OK:
+                listener.onLine("OK");
+                break;
+            case Frame.ERROR:
+                listener.onLine("ERROR");
+                break;
+            case Frame.BYE:
+                listener.onLine("BYE");
+                break;
+            case Frame.MESSAGE:
+                listener.onLine("MESSAGE " + name + " " + payload);
+                break;
+            case Frame.PRIVATE:
+                listener.onLine("PRIVATE " + name + " " + payload);
+                break;
+            case Frame.JOINED:
+                listener.onLine("JOINED " + name);
+                break;
+            case Frame.LEFT:
+                listener.onLine("LEFT " + name);
+                break;
+            case Frame.NEWNICK:
+                listener.onLine("NEWNICK " + name + " " + payload);
+                break;
+            case Frame.STATS:
+                listener.onLine("STATS " + payload);
+                break;
+            case Frame.SYMBOL:
+                // The server reuses the ids of names nobody uses any more
+                String was = symbols.put(id, payload);
+                if (was != null)
+                    symbolIds.remove(was, id);
+                symbolIds.put(payload, id);
+                break;
+            case Frame.HISTORY:
+                // Replayed messages, already in text form
+                for (String line : payload.split("\n")) {
+                    listener.onLine(line);
+                }
+                break;
+            case Frame.PING:
+                send("/pong");
+                break;
+            case Frame.RESUME:
+                resumeToken = payload;
+                break;
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread t;
+        try {
+            // Thread.ofVirtual().name(name).unstarted(task), on Java 21+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class).invoke(builder, name);
+            t = (Thread) type.getMethod("unstarted", Runnable.class).invoke(builder, task);
+
+        } catch (ReflectiveOperationException e) {
+            t = new Thread(task, name);
+            t.setDaemon(true);
+        }
+        t.start();
+    }
+}
@@ -1,85 +1,271 @@
 package up.project.chat;
 
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.Queue;
 
 public class ClientInfo {
     public static final byte STATE_INIT = 1;
     public static final byte STATE_OUT = 2;
     public static final byte STATE_IN = 3;
 
+    // Most symbols a binary client's known table holds
+    static private final int MAX_KNOWN = 256;
+
+    private final int id;
     private final SocketChannel channel;
-    private String nick;
-    private String forum;
-    private final StringBuffer dataBuffer;
-    private final Queue<String> commandQueue;
+    private final Transport transport;
+    // Volatile for the timer thread of the blocking mode, see ChatEngine.checkTimeouts
+    private volatile Symbol nick;
+    private Room room;
+    // The room's history, a reference held while in it; null without history
+    private RoomLog roomLog;
+    private final LineFramer framer;
+    private final OutboundQueue outbound;
+    private SelectionKey key;
+    private boolean readPaused;
+    private boolean closing;
+    private boolean suspended;
+
+    // Lines from this connection, null when connections are not limited
+    private final TokenBucket limiter;
+
+    // TimingWheel.now() of the connect, the last read and the last PING
+    private final long connectedAt;
+    private volatile long lastInput, lastPing;
+
+    // The reactor's pending timeout check, see Reactor.watch()
+    private TimingWheel.Timeout timer;
+
+    // nanoTime the held-back frames were queued at, 0 when none wait for a coalesced flush
+    private long queuedSince;
 
-    ClientInfo(SocketChannel channel) {
+    // Room to rejoin once the nick of a /resume is granted
+    private String resumeRoom;
+
+    // Output side of the binary protocol, see Frame.queueFor
+    private boolean binary;
+    // The symbol last defined to the client for each id, by id modulo the
+    //  length; a symbol pushed out by another one is just defined again
+    private volatile Symbol[] known;
+
+    // Output side of /compress, frames go out in packets
+    private boolean compressed;
+
+    ClientInfo(int id, SocketChannel channel, Transport transport) {
+        this.id = id;
         this.channel = channel;
+        this.transport = transport;
         this.nick = null;
-        this.forum = null;
-        this.dataBuffer = new StringBuffer(16384);
-        this.commandQueue = new LinkedList<>();
+        this.room = null;
+        this.framer = new LineFramer(ServerConfig.MAX_LINE);
+        this.outbound = new OutboundQueue();
+        this.connectedAt = this.lastInput = TimingWheel.now();
+        this.limiter = ServerConfig.CLIENT_LIMIT == null ? null : new TokenBucket(ServerConfig.CLIENT_LIMIT);
+    }
+
+    // Connection id, unique for the lifetime of the server
+    public int getId() {
+        return id;
     }
 
     public SocketChannel getChannel() {
         return channel;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
     public byte getState() {
         if (this.nick == null) return STATE_INIT;
-        else if (forum == null) return STATE_OUT;
+        else if (room == null) return STATE_OUT;
         else return STATE_IN;
     }
 
     public String getNick() {
+        Symbol n = nick;
+        return n == null ? null : n.name;
+    }
+
+    // UTF-8 form of the nick, kept so frames can copy it instead of encoding it
+    public byte[] getNickBytes() {
+        Symbol n = nick;
+        return n == null ? null : n.bytes;
+    }
+
+    public Symbol getNickSymbol() {
         return nick;
     }
 
-    public void setNick(String nick) {
+    public void setNick(Symbol nick) {
         if (nick != null)
             this.nick = nick;
     }
 
-    public String getForum() {
-        return forum;
+    public Room getRoom() {
+        return room;
     }
 
-    public void setForum(String forum) {
-        if (forum != null)
-            this.forum = forum;
+    // null when leaving the room
+    public void setRoom(Room room) {
+        this.room = room;
     }
 
-    public StringBuffer getDataBuffer() {
-        return dataBuffer;
+    RoomLog getRoomLog() {
+        return roomLog;
     }
 
-    public Queue<String> getCommandQueue() {
-        return commandQueue;
+    void setRoomLog(RoomLog roomLog) {
+        this.roomLog = roomLog;
     }
 
-    public void process() {
-        // Process all commands currently in dataBuffer and put them in commandQueue
-        //  then remove the processed dataBuffer
+    public LineFramer getFramer() {
+        return framer;
+    }
 
-        int start = 0, end = dataBuffer.indexOf("\n"), prev_end = end;
-        while( end != -1) {
-            commandQueue.add(dataBuffer.substring(start, end));
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
 
-            start = end + 1;
-            prev_end = end;
-            end = dataBuffer.indexOf("\n", start);
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    public void setReadPaused(boolean readPaused) {
+        this.readPaused = readPaused;
+    }
+
+    // Set once the client is on its way out: nothing more is read from it
+    //  and the socket is closed as soon as the outbound queue drains
+    public boolean isClosing() {
+        return closing;
+    }
+
+    public void setClosing(boolean closing) {
+        this.closing = closing;
+    }
+
+    // Set while a command waits for an answer from another node, no further
+    //  commands are run (or read) until it arrives
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    TokenBucket getLimiter() {
+        return limiter;
+    }
+
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    public long getLastInput() {
+        return lastInput;
+    }
+
+    public void setLastInput(long lastInput) {
+        this.lastInput = lastInput;
+    }
+
+    public long getLastPing() {
+        return lastPing;
+    }
+
+    public void setLastPing(long lastPing) {
+        this.lastPing = lastPing;
+    }
+
+    public TimingWheel.Timeout getTimer() {
+        return timer;
+    }
+
+    public void setTimer(TimingWheel.Timeout timer) {
+        this.timer = timer;
+    }
+
+    public long getQueuedSince() {
+        return queuedSince;
+    }
+
+    public void setQueuedSince(long queuedSince) {
+        this.queuedSince = queuedSince;
+    }
+
+    void setResumeRoom(String room) {
+        this.resumeRoom = room;
+    }
+
+    // The room left to rejoin, cleared by asking
+    String takeResumeRoom() {
+        String room = resumeRoom;
+        resumeRoom = null;
+        return room;
+    }
+
+    // Frames for this client use the binary encoding
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+        if (binary && known == null)
+            known = new Symbol[16];
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // Returns true if the client does not know what the symbol's id stands
+    //  for: it never saw the symbol, or the id meant another name since
+    boolean learn(Symbol symbol) {
+        int slot = symbol.id & (known.length - 1);
+        Symbol had = known[slot];
+        if (had == symbol) return false;
+
+        // Two ids in use on one slot, make room up to MAX_KNOWN
+        if (had != null && had.id != symbol.id && known.length < MAX_KNOWN) {
+            Symbol[] bigger = new Symbol[known.length * 2];
+            for (Symbol s : known) {
+                if (s != null) bigger[s.id & (bigger.length - 1)] = s;
+            }
+            known = bigger;
+            slot = symbol.id & (known.length - 1);
         }
+        known[slot] = symbol;
+        return true;
+    }
 
-        if(end != -1)
-            dataBuffer.delete(0, end);
-        else if(prev_end != -1)
-            dataBuffer.delete(0, prev_end);
+    // The symbol the client was last told id stands for, null if that is not kept
+    Symbol known(int id) {
+        Symbol s = known == null ? null : known[id & (known.length - 1)];
+        return s != null && s.id == id ? s : null;
+    }
 
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ClientInfo && ((ClientInfo) o).id == id;
     }
 
-    public boolean equals(ClientInfo clientInfo) {
-        return clientInfo != null && this.channel == clientInfo.getChannel();
+    @Override
+    public int hashCode() {
+        return id;
     }
 }
@@ -0,0 +1,457 @@
+package up.project.chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Federation of several server nodes
+//  every node links to every other one (chat.cluster.nodes, at most 64).
+//  Rooms: a node tells its peers when it gets its first and loses its last
+//   member of a room, frames for a room only go to nodes with members there.
+//  Nicks: each nick has a home node (hash of the nick) that decides who may
+//   take it, so a nick is unique across the cluster. Nodes also announce the
+//   nicks their clients hold, which routes private messages without asking.
+//
+// Link messages are an int length, a type byte and the body:
+//  HELLO          int node
+//  ROOM_INTEREST  byte on, room
+//  ROOM_FRAME     room, frame
+//  PRIVATE_FRAME  nick, frame
+//  NICK_CLAIM     long id, nick
+//  NICK_RESULT    long id, byte granted, nick
+//  NICK_HELD      nick
+//  NICK_DROPPED   nick
+// names are a short length and UTF-8; a frame is its opcode, the nick
+// in it and the payload running to the end, each node encodes it anew.
+// A node listens on its own address only and takes links from the other
+// nodes' hosts only; a message longer than any client line could make, or
+// a HELLO with a node index it does not expect, drops the link
+final class Cluster {
+    static private final byte HELLO = 1;
+    static private final byte ROOM_INTEREST = 2;
+    static private final byte ROOM_FRAME = 3;
+    static private final byte PRIVATE_FRAME = 4;
+    static private final byte NICK_CLAIM = 5;
+    static private final byte NICK_RESULT = 6;
+    static private final byte NICK_HELD = 7;
+    static private final byte NICK_DROPPED = 8;
+
+    // Longest message body: a room, a nick and a payload, each from one client line
+    static private final int MAX_BODY = 3 * ServerConfig.MAX_LINE + 64;
+
+    // Outcome of claimNick when it is known right away
+    static final int GRANTED = 0;
+    static final int DENIED = 1;
+    static final int PENDING = 2;
+
+    private final ChatEngine engine;
+    private final Registry registry;
+    private final int self;
+    private final InetSocketAddress[] addresses;
+    private final NodeLink[] links;
+
+    // Local members per room, a room is announced when this goes 0 -> 1 and back
+    private final ConcurrentHashMap<String, Integer> localRooms = new ConcurrentHashMap<>();
+
+    // Bit n set if node n has members in the room
+    private final ConcurrentHashMap<String, Long> remoteRooms = new ConcurrentHashMap<>();
+
+    // Nicks held on other nodes, and by which node
+    private final ConcurrentHashMap<String, Integer> remoteNicks = new ConcurrentHashMap<>();
+
+    // Nicks whose home is this node, and the node holding each
+    private final ConcurrentHashMap<String, Integer> claims = new ConcurrentHashMap<>();
+
+    // Claims sent to other nodes, waiting for the answer
+    private final ConcurrentHashMap<Long, PendingClaim> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaim = new AtomicLong();
+
+    private Cluster(ChatEngine engine, Registry registry, int self, InetSocketAddress[] addresses) {
+        this.engine = engine;
+        this.registry = registry;
+        this.self = self;
+        this.addresses = addresses;
+        this.links = new NodeLink[addresses.length];
+
+        for (int i = 0; i < addresses.length; i++) {
+            if (i != self)
+                links[i] = new NodeLink(i, addresses[i], this);
+        }
+    }
+
+    // null unless chat.cluster.nodes is set
+    static Cluster open(ChatEngine engine, Registry registry) {
+        if (ServerConfig.CLUSTER_NODES == null)
+            return null;
+
+        String[] nodes = ServerConfig.CLUSTER_NODES.split(",");
+        if (nodes.length > 64)
+            throw new IllegalArgumentException("At most 64 cluster nodes");
+        if (ServerConfig.CLUSTER_NODE < 0 || ServerConfig.CLUSTER_NODE >= nodes.length)
+            throw new IllegalArgumentException("chat.cluster.node must index chat.cluster.nodes");
+
+        InetSocketAddress[] addresses = new InetSocketAddress[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            String node = nodes[i].trim();
+            int colon = node.lastIndexOf(':');
+            addresses[i] = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        }
+
+        return new Cluster(engine, registry, ServerConfig.CLUSTER_NODE, addresses);
+    }
+
+    // Listen for the peers and start linking to them
+    void start() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(addresses[self]);
+        Log.info("Cluster node {} listening for peers on {}", self, addresses[self]);
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket peer = server.accept();
+                    if (!isNodeHost(peer.getInetAddress(), -1)) {
+                        Log.warn("Refused link from {}, not a cluster node", peer.getRemoteSocketAddress());
+                        peer.close();
+                        continue;
+                    }
+                    Thread reader = new Thread(() -> readLink(peer), "link-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    Log.error("Cluster accept failed: {}", e);
+                    return;
+                }
+            }
+        }, "link-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (NodeLink link : links) {
+            if (link != null)
+                link.start();
+        }
+    }
+
+    // ---- Called by the engine
+
+    void joined(String room) {
+        localRooms.compute(room, (name, count) -> {
+            if (count == null) {
+                broadcast(interest(true, name));
+                return 1;
+            }
+            return count + 1;
+        });
+    }
+
+    void left(String room) {
+        localRooms.compute(room, (name, count) -> {
+            if (count == null || count == 1) {
+                broadcast(interest(false, name));
+                return null;
+            }
+            return count - 1;
+        });
+    }
+
+    // Send a room frame to the nodes with members in the room
+    void forwardRoom(String room, Frame frame) {
+        Long nodes = remoteRooms.get(room);
+        if (nodes == null) return;
+
+        byte[] message = null;
+        for (long mask = nodes; mask != 0; mask &= mask - 1) {
+            NodeLink link = links[Long.numberOfTrailingZeros(mask)];
+            if (link == null) continue;
+
+            // Encoded once, every node gets the same bytes
+            if (message == null)
+                message = encode(ROOM_FRAME, 0, 0, room, frame);
+            link.send(message);
+        }
+    }
+
+    // Returns false if no node holds the nick
+    boolean forwardPrivate(String nick, Frame frame) {
+        Integer node = remoteNicks.get(nick);
+        if (node == null || !links[node].isConnected())
+            return false;
+
+        links[node].send(encode(PRIVATE_FRAME, 0, 0, nick, frame));
+        return true;
+    }
+
+    // cc already holds the nick on this node, ask its home node
+    //  on PENDING the answer comes through engine.nickClaimed on cc's thread
+    int claimNick(String nick, ClientInfo cc) {
+        int home = home(nick);
+        if (home == self)
+            return claim(nick, self) ? GRANTED : DENIED;
+
+        NodeLink link = links[home];
+        if (!link.isConnected())
+            return DENIED;
+
+        long id = nextClaim.incrementAndGet();
+        pending.put(id, new PendingClaim(cc, nick, home));
+        link.send(encode(NICK_CLAIM, id, 0, nick, null));
+
+        // The link may have gone down before the claim got out
+        if (!link.isConnected())
+            failClaims(home);
+        return PENDING;
+    }
+
+    // A client on this node now holds the nick
+    void nickHeld(String nick) {
+        broadcast(encode(NICK_HELD, 0, 0, nick, null));
+    }
+
+    void releaseNick(String nick) {
+        if (home(nick) == self)
+            claims.remove(nick, self);
+        broadcast(encode(NICK_DROPPED, 0, 0, nick, null));
+    }
+
+    // ---- Link management
+
+    byte[] hello() {
+        return ByteBuffer.allocate(9).putInt(5).put(HELLO).putInt(self).array();
+    }
+
+    // A link (re)connected, tell the peer everything it may have missed
+    void resync(NodeLink link) {
+        for (String room : localRooms.keySet())
+            link.send(interest(true, room));
+        for (Symbol nick : registry.nicks())
+            link.send(encode(NICK_HELD, 0, 0, nick.name, null));
+    }
+
+    // Our link to the node broke, its answers will not come
+    void linkDown(int node) {
+        failClaims(node);
+    }
+
+    private void failClaims(int node) {
+        for (Map.Entry<Long, PendingClaim> entry : pending.entrySet()) {
+            PendingClaim claim = entry.getValue();
+            if (claim.home == node && pending.remove(entry.getKey(), claim))
+                claim.complete(engine, false);
+        }
+    }
+
+    // The node's link to us broke, forget what it had; it resyncs when it is back
+    private void nodeDown(int node) {
+        long bit = 1L << node;
+        for (String room : remoteRooms.keySet())
+            remoteRooms.computeIfPresent(room, (name, nodes) -> (nodes & ~bit) == 0 ? null : nodes & ~bit);
+
+        for (Map.Entry<String, Integer> e : remoteNicks.entrySet()) {
+            if (e.getValue() == node && remoteNicks.remove(e.getKey(), node))
+                SymbolTable.release(SymbolTable.lookup(e.getKey()));
+        }
+        claims.values().removeIf(holder -> holder == node);
+        failClaims(node);
+    }
+
+    private void readLink(Socket peer) {
+        int node = -1;
+        try (Socket socket = peer) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length - 1 > MAX_BODY)
+                    throw new IOException("message of " + length + " bytes");
+                byte type = in.readByte();
+                byte[] body = new byte[length - 1];
+                in.readFully(body);
+                ByteBuffer b = ByteBuffer.wrap(body);
+
+                if (type == HELLO) {
+                    int hello = b.getInt();
+                    if (node >= 0 || hello == self || !isNodeHost(socket.getInetAddress(), hello))
+                        throw new IOException("unexpected HELLO from node " + hello);
+                    node = hello;
+                    Log.info("Node {} linked in from {}", node, socket.getRemoteSocketAddress());
+                } else if (node >= 0) {
+                    handle(node, type, b);
+                }
+            }
+
+        } catch (IOException | RuntimeException e) {
+            // Peer gone, or it sent something no node would
+            if (!(e instanceof EOFException))
+                Log.warn("Dropping link from {}: {}", peer.getRemoteSocketAddress(), e);
+        }
+
+        if (node >= 0) {
+            Log.warn("Node {} went away", node);
+            nodeDown(node);
+        }
+    }
+
+    // Whether address is the host of node, or of any other node when node is -1
+    private boolean isNodeHost(InetAddress address, int node) {
+        if (node >= addresses.length)
+            return false;
+
+        for (int i = 0; i < addresses.length; i++) {
+            if (i != self && (node < 0 || node == i) && address.equals(addresses[i].getAddress()))
+                return true;
+        }
+        return false;
+    }
+
+    private void handle(int node, byte type, ByteBuffer b) {
+        long bit = 1L << node;
+        long id;
+
+        switch (type) {
+            case ROOM_INTEREST:
+                boolean on = b.get() != 0;
+                String room = name(b);
+                if (on)
+                    remoteRooms.merge(room, bit, (a, c) -> a | c);
+                else
+                    remoteRooms.computeIfPresent(room, (name, nodes) -> (nodes & ~bit) == 0 ? null : nodes & ~bit);
+                break;
+
+            case ROOM_FRAME:
+                engine.deliverRoom(name(b), frame(b));
+                break;
+
+            case PRIVATE_FRAME:
+                engine.deliverPrivate(name(b), frame(b));
+                break;
+
+            case NICK_CLAIM:
+                id = b.getLong();
+                String nick = name(b);
+                links[node].send(encode(NICK_RESULT, id, claim(nick, node) ? 1 : 0, nick, null));
+                break;
+
+            case NICK_RESULT:
+                id = b.getLong();
+                boolean granted = b.get() != 0;
+                PendingClaim claim = pending.remove(id);
+                if (claim != null)
+                    claim.complete(engine, granted);
+                else if (granted)
+                    // Given up on already, hand it back
+                    links[node].send(encode(NICK_DROPPED, 0, 0, name(b), null));
+                break;
+
+            case NICK_HELD:
+                String held = name(b);
+                if (remoteNicks.put(held, node) == null)
+                    SymbolTable.intern(held);
+                if (home(held) == self)
+                    claims.putIfAbsent(held, node);
+                break;
+
+            case NICK_DROPPED:
+                String dropped = name(b);
+                if (remoteNicks.remove(dropped, node))
+                    SymbolTable.release(SymbolTable.lookup(dropped));
+                claims.remove(dropped, node);
+                break;
+        }
+    }
+
+    // Decide a claim for a nick whose home is this node
+    private boolean claim(String nick, int node) {
+        Integer holder = claims.putIfAbsent(nick, node);
+        return holder == null || holder == node;
+    }
+
+    private int home(String nick) {
+        return Math.floorMod(nick.hashCode(), addresses.length);
+    }
+
+    private void broadcast(byte[] message) {
+        for (NodeLink link : links) {
+            if (link != null)
+                link.send(message);
+        }
+    }
+
+    private static byte[] interest(boolean on, String room) {
+        return encode(ROOM_INTEREST, 0, on ? 1 : 0, room, null);
+    }
+
+    // One encoder for all message kinds, the fields a type does not use are skipped
+    private static byte[] encode(byte type, long id, int flag, String name, Frame frame) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean hasId = type == NICK_CLAIM || type == NICK_RESULT;
+        boolean hasFlag = type == NICK_RESULT || type == ROOM_INTEREST;
+
+        int length = 1 + (hasId ? 8 : 0) + (hasFlag ? 1 : 0) + 2 + nameBytes.length;
+        ByteBuffer payload = null;
+        if (frame != null) {
+            payload = frame.payload();
+            length += 1 + 2 + frame.nick().bytes.length + (payload == null ? 0 : payload.remaining());
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(4 + length).putInt(length).put(type);
+        if (hasId) out.putLong(id);
+        if (hasFlag) out.put((byte) flag);
+        out.putShort((short) nameBytes.length).put(nameBytes);
+        if (frame != null) {
+            out.put(frame.op()).putShort((short) frame.nick().bytes.length).put(frame.nick().bytes);
+            if (payload != null) out.put(payload.duplicate());
+        }
+        return out.array();
+    }
+
+    private static String name(ByteBuffer b) {
+        int length = b.getShort() & 0xffff;
+        String name = new String(b.array(), b.position(), length, StandardCharsets.UTF_8);
+        b.position(b.position() + length);
+        return name;
+    }
+
+    // The rest of the body as a frame
+    private static Frame frame(ByteBuffer b) {
+        byte op = b.get();
+        // Held on another node, so interned here while that lasts; otherwise
+        //  the frame carries a symbol of its own
+        String name = name(b);
+        Symbol nick = SymbolTable.lookup(name);
+        if (nick == null) {
+            nick = SymbolTable.intern(name);
+            SymbolTable.release(nick);
+        }
+        ByteBuffer payload = b.hasRemaining()
+                ? FrameBuilder.start().put(b.array(), b.position(), b.remaining()).seal()
+                : null;
+        return new Frame(op, nick, payload);
+    }
+
+    static private final class PendingClaim {
+        final ClientInfo cc;
+        final String nick;
+        final int home;
+
+        PendingClaim(ClientInfo cc, String nick, int home) {
+            this.cc = cc;
+            this.nick = nick;
+            this.home = home;
+        }
+
+        void complete(ChatEngine engine, boolean granted) {
+            cc.getTransport().resume(cc, () -> engine.nickClaimed(cc, nick, granted));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package up.project.chat;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Delivery of frames to large rooms, off the thread that sent them
+//  a large room keeps its members split in one shard per lane, and each lane
+//  has a thread working through the shards it is given in order. A client
+//  always falls in the same lane (by id), so the frames it gets from a room
+//  arrive in the order they were sent while the lanes run in parallel.
+//  Within a shard the members served by the same transport sit together and
+//  are handed over in one call, one mailbox task per reactor and not per member
+final class Fanout {
+    static private final Lane[] lanes = new Lane[ServerConfig.FANOUT_THREADS];
+
+    static {
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+            lanes[i].start();
+        }
+    }
+
+    private Fanout() {
+    }
+
+    // Shard of the room holding cc
+    static int lane(ClientInfo cc) {
+        return Math.floorMod(cc.getId(), ServerConfig.FANOUT_THREADS);
+    }
+
+    // Queue msg for every member of shards but exc, callable from any thread
+    static void send(Frame msg, ClientInfo[][] shards, ClientInfo exc) {
+        for (int i = 0; i < shards.length; i++) {
+            ClientInfo[] shard = shards[i];
+            if (shard.length == 0) continue;
+
+            lanes[i].queue.add(() -> deliver(msg, shard, exc));
+            Metrics.fanoutShards.increment();
+        }
+    }
+
+    private static void deliver(Frame msg, ClientInfo[] shard, ClientInfo exc) {
+        int i = 0;
+        while (i < shard.length) {
+            if (shard[i] == exc) {
+                i++;
+                continue;
+            }
+
+            // The run of members on the same transport, up to exc
+            Transport transport = shard[i].getTransport();
+            int end = i + 1;
+            while (end < shard.length && shard[end] != exc && shard[end].getTransport() == transport)
+                end++;
+
+            transport.send(shard, i, end, msg);
+            i = end;
+        }
+    }
+
+    private static final class Lane extends Thread {
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+        Lane(int index) {
+            super("fanout-" + index);
+            setDaemon(true);
+        }
+
+        @SuppressWarnings("InfiniteLoopStatement")
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    queue.take().run();
+                } catch (InterruptedException e) {
+                    // Daemon, goes away with the server
+                } catch (RuntimeException e) {
+                    Log.error("{}: fan-out failed", getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A byte range of a file queued for a client
+//  it goes out with FileChannel.transferTo, so the bytes move from the page
+//  cache to the socket without passing through the heap. The file stays open
+//  until the region is released: once it is out, or when it is dropped
+final class FileRegion {
+    private final FileChannel file;
+    private final long start, end;
+    private long position;
+
+    // Lets go of the file, run once; null if there is nothing to let go
+    private Runnable release;
+
+    FileRegion(FileChannel file, long start, long end, Runnable release) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+        this.release = release;
+    }
+
+    long remaining() {
+        return end - position;
+    }
+
+    // Once part of it is out the rest has to follow
+    boolean isStarted() {
+        return position != start;
+    }
+
+    // Returns the bytes used up, the socket may take less than asked
+    long transferTo(WritableByteChannel channel) throws IOException {
+        long n = file.transferTo(position, end - position, channel);
+        position += n;
+        if (position == end)
+            release();
+        return n;
+    }
+
+    // Not sent or not sent any further, safe to call more than once
+    void release() {
+        Runnable r = release;
+        release = null;
+        if (r != null)
+            r.run();
+    }
+}
@@ -0,0 +1,261 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+
+// One server frame, built once and delivered to any number of clients
+//  it keeps its parts (opcode, nick, payload) and encodes itself for the text
+//  or the binary protocol the first time a client needs that form. The
+//  encodings never change once built, a race only builds one twice.
+//
+// Binary framing, after a client sent "/binary" and got its OK:
+//  varint length, opcode, varint id, raw UTF-8 payload
+//  the length covers everything after itself, id 0 means no id
+//
+// Packets, after a client sent "/compress" (or REQ_COMPRESS) and got its OK:
+//  every frame of either protocol travels in a packet of its own, a varint
+//  header (length << 1 | deflated) and the body, raw deflate when the flag
+//  is set. Frames are deflated alone, without a shared stream, so a room
+//  frame is compressed once and the same packet goes to every member
+final class Frame {
+    // Server to client
+    static final byte OK = 1;
+    static final byte ERROR = 2;
+    static final byte BYE = 3;
+    static final byte MESSAGE = 4;      // id: sender, payload: text
+    static final byte PRIVATE = 5;      // id: sender, payload: text
+    static final byte JOINED = 6;       // id: nick
+    static final byte LEFT = 7;         // id: nick
+    static final byte NEWNICK = 8;      // id: old nick, payload: new nick
+    static final byte STATS = 9;        // payload: key=value list
+    static final byte SYMBOL = 10;      // id, payload: the name it stands for
+    static final byte HISTORY = 11;     // payload: replayed messages (or kept private ones) in text form
+    static final byte PING = 12;        // answer with REQ_PONG, or any other request
+    static final byte RESUME = 13;      // payload: token for REQ_RESUME after a restart, sent before BYE
+
+    // Client to server
+    static final byte REQ_NICK = 32;    // payload: nick
+    static final byte REQ_JOIN = 33;    // payload: room
+    static final byte REQ_LEAVE = 34;
+    static final byte REQ_BYE = 35;
+    static final byte REQ_SEND = 36;    // payload: text, newlines allowed
+    static final byte REQ_PRIV = 37;    // id: target nick, payload: text; or id 0, payload: "<nick> <text>"
+    static final byte REQ_STATS = 38;
+    static final byte REQ_COMPRESS = 39;
+    static final byte REQ_PONG = 40;
+    static final byte REQ_RESUME = 41;  // payload: the token from RESUME
+
+    // The OK to /binary, everything queued after it is binary
+    static private final byte UPGRADE = 0;
+
+    // The OK to /compress, everything queued after it is packed
+    static private final byte COMPRESS = -1;
+
+    static private final byte[] STATS_HEAD = Frames.bytes("STATS ");
+    static private final byte[] RESUME_HEAD = Frames.bytes("RESUME ");
+
+    private final byte op;
+    private final Symbol nick;
+    private final ByteBuffer payload;
+
+    private volatile ByteBuffer text, binary, packedText, packedBinary;
+
+    Frame(byte op, Symbol nick, ByteBuffer payload) {
+        this.op = op;
+        this.nick = nick;
+        this.payload = payload;
+    }
+
+    static Frame upgrade() {
+        return new Frame(UPGRADE, null, null);
+    }
+
+    static Frame compress() {
+        return new Frame(COMPRESS, null, null);
+    }
+
+    // A private message from a text line, which holds no newline: built in
+    //  its text form in one copy, the payload is a view of it
+    static Frame privateText(Symbol nick, byte[] line, int off, int len) {
+        ByteBuffer text = FrameBuilder.start()
+                .put(Frames.PRIVATE).put(nick.bytes).put(Frames.SPACE)
+                .put(line, off, len).put(Frames.NEWLINE)
+                .seal();
+
+        ByteBuffer payload = text.duplicate();
+        payload.position(text.remaining() - 1 - len).limit(text.remaining() - 1);
+
+        Frame f = new Frame(PRIVATE, nick, payload.slice());
+        f.text = text;
+        return f;
+    }
+
+    byte op() {
+        return op;
+    }
+
+    // null for the fixed replies
+    Symbol nick() {
+        return nick;
+    }
+
+    ByteBuffer payload() {
+        return payload;
+    }
+
+    // Queue the form cc speaks, a binary client first learns the ids it has not seen
+    //  runs on the thread owning cc's queue (or with its lock held)
+    void queueFor(ClientInfo cc) {
+        OutboundQueue out = cc.getOutbound();
+
+        if (op == UPGRADE) {
+            out.add(form(cc).duplicate());
+            cc.setBinary(true);
+            return;
+        }
+
+        if (op == COMPRESS) {
+            // The OK itself is not packed yet
+            out.add((cc.isBinary() ? binary() : text()).duplicate());
+            cc.setCompressed(true);
+            return;
+        }
+
+        if (cc.isBinary() && nick != null && cc.learn(nick))
+            out.add(cc.isCompressed() ? pack(nick.definition()) : nick.definition().duplicate());
+        out.add(form(cc).duplicate());
+    }
+
+    private ByteBuffer form(ClientInfo cc) {
+        if (!cc.isCompressed())
+            return cc.isBinary() ? binary() : text();
+        return cc.isBinary() ? packedBinary() : packedText();
+    }
+
+    // Replayed history for cc, the file bytes go out as they are, behind a
+    //  HISTORY header for a binary client and in a stored packet when packed
+    static void queueHistory(ClientInfo cc, FileRegion region) {
+        OutboundQueue out = cc.getOutbound();
+        int size = (int) region.remaining();
+
+        ByteBuffer header = cc.isBinary() ? historyHeader(size) : null;
+        if (cc.isCompressed())
+            out.add(packetHeader(size + (header == null ? 0 : header.remaining()), false));
+        if (header != null)
+            out.add(header);
+        out.add(region);
+    }
+
+    ByteBuffer text() {
+        ByteBuffer t = text;
+        if (t == null) {
+            t = encodeText();
+            text = t;
+        }
+        return t;
+    }
+
+    ByteBuffer binary() {
+        ByteBuffer b = binary;
+        if (b == null) {
+            int id = nick == null ? 0 : nick.id;
+            int size = payload == null ? 0 : payload.remaining();
+
+            b = FrameBuilder.start()
+                    .putVarint(1 + varintSize(id) + size)
+                    .put(op == COMPRESS ? OK : op).putVarint(id)
+                    .put(payload)
+                    .seal();
+            binary = b;
+        }
+        return b;
+    }
+
+    // Shared by every packed client, the frame is deflated at most once
+    private ByteBuffer packedText() {
+        ByteBuffer p = packedText;
+        if (p == null) {
+            p = pack(text());
+            packedText = p;
+        }
+        return p;
+    }
+
+    private ByteBuffer packedBinary() {
+        ByteBuffer p = packedBinary;
+        if (p == null) {
+            p = pack(binary());
+            packedBinary = p;
+        }
+        return p;
+    }
+
+    static ByteBuffer pack(ByteBuffer frame) {
+        return FrameBuilder.start().putPacked(frame).seal();
+    }
+
+    static ByteBuffer packetHeader(int length, boolean deflated) {
+        return FrameBuilder.start().putVarint(length << 1 | (deflated ? 1 : 0)).seal();
+    }
+
+    // Header for replayed history going to a binary client, the file bytes follow it
+    private static ByteBuffer historyHeader(int size) {
+        return FrameBuilder.start()
+                .putVarint(2 + size)
+                .put(HISTORY).putVarint(0)
+                .seal();
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private ByteBuffer encodeText() {
+        switch (op) {
+            case UPGRADE:
+            case COMPRESS:
+            case OK:
+                return fixed("OK\n");
+            case ERROR:
+                return fixed("ERROR\n");
+            case BYE:
+                return fixed("BYE\n");
+            case PING:
+                return fixed("PING\n");
+            case HISTORY:
+                // Already lines of text
+                return payload;
+        }
+
+        FrameBuilder b = FrameBuilder.start();
+        switch (op) {
+            case MESSAGE:
+                b.put(Frames.MESSAGE).put(nick.bytes).put(Frames.SPACE).putLine(payload);
+                break;
+            case PRIVATE:
+                b.put(Frames.PRIVATE).put(nick.bytes).put(Frames.SPACE).putLine(payload);
+                break;
+            case JOINED:
+                b.put(Frames.JOINED).put(nick.bytes);
+                break;
+            case LEFT:
+                b.put(Frames.LEFT).put(nick.bytes);
+                break;
+            case NEWNICK:
+                b.put(Frames.NEWNICK).put(nick.bytes).put(Frames.SPACE).putLine(payload);
+                break;
+            case STATS:
+                b.put(STATS_HEAD).putLine(payload);
+                break;
+            case RESUME:
+                b.put(RESUME_HEAD).putLine(payload);
+                break;
+        }
+        return b.put(Frames.NEWLINE).seal();
+    }
+
+    private static ByteBuffer fixed(String text) {
+        return FrameBuilder.start().put(text).seal();
+    }
+}
@@ -0,0 +1,166 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+// Writes frames straight into a chunk of direct memory
+//  every sealed frame is a read-only slice of the chunk; once a chunk is full
+//  the next one is started and the old one lives on until its frames are sent
+//
+// Builders are striped by thread rather than thread-local, so the virtual
+//  thread mode does not end up with a chunk per connection
+final class FrameBuilder {
+    static private final int CHUNK = 64 * 1024;
+
+    static private final FrameBuilder[] stripes = new FrameBuilder[stripeCount()];
+
+    static {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new FrameBuilder();
+    }
+
+    // Held from start() to seal()
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK);
+    private int frameStart;
+
+    // For putPacked, made on first use
+    private Deflater deflater;
+    private byte[] deflated;
+
+    private FrameBuilder() {
+    }
+
+    // Begin a new frame, every start() must be followed by seal()
+    static FrameBuilder start() {
+        FrameBuilder b = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        b.lock.lock();
+        b.frameStart = b.chunk.position();
+        return b;
+    }
+
+    FrameBuilder put(byte[] bytes) {
+        return put(bytes, 0, bytes.length);
+    }
+
+    FrameBuilder put(byte[] bytes, int off, int len) {
+        ensure(len);
+        chunk.put(bytes, off, len);
+        return this;
+    }
+
+    // null puts nothing
+    FrameBuilder put(ByteBuffer bytes) {
+        if (bytes == null)
+            return this;
+
+        ensure(bytes.remaining());
+        chunk.put(bytes.duplicate());
+        return this;
+    }
+
+    // Bytes that go inside a text line, a newline in them would end it early
+    FrameBuilder putLine(ByteBuffer bytes) {
+        put(bytes);
+        for (int i = chunk.position() - bytes.remaining(); i < chunk.position(); i++) {
+            if (chunk.get(i) == '\n')
+                chunk.put(i, (byte) ' ');
+        }
+        return this;
+    }
+
+    // Unsigned LEB128, 7 bits per byte, low bits first
+    FrameBuilder putVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            chunk.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        chunk.put((byte) value);
+        return this;
+    }
+
+    FrameBuilder put(byte b) {
+        ensure(1);
+        chunk.put(b);
+        return this;
+    }
+
+    // The frame as a packet (see Frame), deflated when that makes it smaller
+    FrameBuilder putPacked(ByteBuffer frame) {
+        int len = frame.remaining();
+
+        if (len >= ServerConfig.COMPRESS_MIN) {
+            if (deflater == null)
+                deflater = new Deflater(ServerConfig.COMPRESS_LEVEL, true);
+            if (deflated == null || deflated.length < len)
+                deflated = new byte[Math.max(len, 1024)];
+
+            deflater.reset();
+            deflater.setInput(frame.duplicate());
+            deflater.finish();
+
+            // Stop at the original size, a bigger result is not worth sending
+            int n = deflater.deflate(deflated, 0, len - 1);
+            if (deflater.finished()) {
+                Metrics.deflatedIn.add(len);
+                Metrics.deflatedOut.add(n);
+                return putVarint(n << 1 | 1).put(deflated, 0, n);
+            }
+        }
+
+        return putVarint(len << 1).put(frame);
+    }
+
+    // Encode the text as UTF-8 in place, for the odd part that has no cached bytes
+    FrameBuilder put(String text) {
+        CharBuffer in = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(in, chunk, true).isOverflow()) {
+            ensure(chunk.capacity());
+        }
+        while (encoder.flush(chunk).isOverflow()) {
+            ensure(chunk.capacity());
+        }
+        return this;
+    }
+
+    // Finish the frame, the result can be shared by any number of recipients
+    ByteBuffer seal() {
+        ByteBuffer frame = chunk.duplicate();
+        frame.position(frameStart).limit(chunk.position());
+        frameStart = chunk.position();
+        lock.unlock();
+        return frame.slice().asReadOnlyBuffer();
+    }
+
+    private static int stripeCount() {
+        return Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+    }
+
+    // Make room for n more bytes, carrying the frame written so far to a new chunk
+    private void ensure(int n) {
+        if (chunk.remaining() >= n)
+            return;
+
+        int written = chunk.position() - frameStart;
+        ByteBuffer next = ByteBuffer.allocateDirect(Math.max(CHUNK, 2 * (written + n)));
+
+        ByteBuffer partial = chunk.duplicate();
+        partial.position(frameStart).limit(frameStart + written);
+        next.put(partial);
+
+        chunk = next;
+        frameStart = 0;
+    }
+}
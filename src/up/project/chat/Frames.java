@@ -0,0 +1,32 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Outgoing protocol frames
+//  a frame is encoded once into read-only direct memory and every recipient
+//  gets its own duplicate() of it, so fan-out never copies the bytes again
+final class Frames {
+    // Replies that never change, encoded once for the whole server
+    static final Frame OK = new Frame(Frame.OK, null, null);
+    static final Frame ERROR = new Frame(Frame.ERROR, null, null);
+    static final Frame BYE = new Frame(Frame.BYE, null, null);
+    static final Frame PING = new Frame(Frame.PING, null, null);
+
+    // Heads of the variable frames
+    static final byte[] MESSAGE = bytes("MESSAGE ");
+    static final byte[] PRIVATE = bytes("PRIVATE ");
+    static final byte[] JOINED = bytes("JOINED ");
+    static final byte[] LEFT = bytes("LEFT ");
+    static final byte[] NEWNICK = bytes("NEWNICK ");
+
+    static final byte SPACE = ' ';
+    static final byte NEWLINE = '\n';
+
+    private Frames() {
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// Room histories under one directory, a subdirectory per room
+//  a room's log is open while clients here are in the room: each holds a
+//  reference and the last one out closes it. Logs are opened and closed on
+//  the history thread, never on the threads serving clients
+final class History {
+    static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+
+    // Open logs by room, guarded by this; only the history thread adds and removes
+    private final HashMap<Symbol, Open> rooms = new HashMap<>();
+
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private History(Path dir) {
+        this.dir = dir;
+    }
+
+    // null when no directory is configured
+    static History open(String dir) {
+        return dir == null ? null : new History(Paths.get(dir));
+    }
+
+    // The room's log with a reference taken, null if it is not open yet
+    synchronized RoomLog acquire(Symbol room) {
+        Open open = rooms.get(room);
+        if (open == null)
+            return null;
+
+        open.refs++;
+        return open.log;
+    }
+
+    // Open the room's log on the history thread and hand it to done there,
+    //  with a reference taken; null if it cannot be opened, the room then
+    //  just has no history
+    void acquire(Symbol room, Consumer<RoomLog> done) {
+        io.execute(() -> {
+            RoomLog log = acquire(room);
+            if (log == null) {
+                log = openLog(room);
+                if (log != null) {
+                    synchronized (this) {
+                        rooms.put(room, new Open(log));
+                    }
+                }
+            }
+            done.accept(log);
+        });
+    }
+
+    // Give back a reference taken by acquire, the log closes with the last one
+    synchronized void release(Symbol room, RoomLog log) {
+        Open open = rooms.get(room);
+        if (open == null || open.log != log || --open.refs > 0)
+            return;
+
+        // Still unused once the history thread gets to it
+        io.execute(() -> {
+            synchronized (this) {
+                if (open.refs > 0 || rooms.get(room) != open)
+                    return;
+                rooms.remove(room);
+            }
+            log.close();
+        });
+    }
+
+    private RoomLog openLog(Symbol room) {
+        try {
+            return new RoomLog(dir.resolve(fileName("room-", room)), io);
+        } catch (IOException e) {
+            Log.warn("Cannot open history of room {}: {}", room.name, e);
+            return null;
+        }
+    }
+
+    // Names may hold almost anything, so they are hex encoded for the file system
+    static String fileName(String prefix, Symbol symbol) {
+        StringBuilder name = new StringBuilder(prefix);
+        for (byte b : symbol.bytes) {
+            name.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return name.toString();
+    }
+
+    private static final class Open {
+        final RoomLog log;
+        int refs = 1;
+
+        Open(RoomLog log) {
+            this.log = log;
+        }
+    }
+}
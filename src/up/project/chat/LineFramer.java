@@ -0,0 +1,350 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Splits the raw input of one client into newline terminated lines
+//  works on bytes, so a UTF-8 sequence split between two reads is simply
+//  completed by the next one, and every byte is scanned only once.
+//  After /binary it splits varint length-prefixed frames instead, a "line"
+//  is then the frame body and its bytes are not scanned at all.
+//  After /compress the input is a series of packets (see Frame), they are
+//  unpacked as they complete and the result is split as before.
+//  The buffers are only held while there is a partial line or packet, an
+//  idle connection keeps no memory here
+class LineFramer {
+    static final int NEED_MORE = 0;
+    static final int LINE = 1;
+    static final int TOO_LONG = 2;
+
+    // Smallest buffer taken for pending input
+    static private final int MIN_BUFFER = 1024;
+
+    static private final byte[] EMPTY = new byte[0];
+
+    private final int maxLine;
+
+    private byte[] buf;
+    // Unconsumed data is buf[start, limit), nothing before scan holds a '\n'
+    private int start, scan, limit;
+
+    // Skipping the rest of an over-long line
+    private boolean discarding;
+
+    private boolean binary;
+
+    // Bytes of an over-long binary frame still to skip
+    private int skip;
+
+    private int lineStart, lineLength;
+
+    // Where the last line began, newline or frame header included, for unread()
+    private int lineFrom;
+
+    // Packets not complete yet, packed[0, packedLimit)
+    private boolean compressed;
+    private byte[] packed = EMPTY;
+    private int packedLimit;
+    private Inflater inflater;
+
+    // A broken packet, nothing after it can be trusted
+    private boolean corrupt, corruptReported;
+
+    LineFramer(int maxLine) {
+        this.maxLine = maxLine;
+        this.buf = EMPTY;
+    }
+
+    public void feed(ByteBuffer in) {
+        if (compressed) {
+            feedPacked(in);
+            return;
+        }
+
+        int n = in.remaining();
+        reserve(n);
+        in.get(buf, limit, n);
+        limit += n;
+    }
+
+    // Make room for n more bytes after limit
+    private void reserve(int n) {
+        if (limit + n > buf.length) {
+            // Move the pending partial line to the front, grow only if that is not enough
+            int pending = limit - start;
+            byte[] dest = pending + n > buf.length
+                    ? new byte[Math.max(MIN_BUFFER, Math.max(buf.length * 2, pending + n))]
+                    : buf;
+
+            System.arraycopy(buf, start, dest, 0, pending);
+            buf = dest;
+            scan -= start;
+            limit = pending;
+            start = 0;
+        }
+    }
+
+    private void feedPacked(ByteBuffer in) {
+        if (corrupt) {
+            in.position(in.limit());
+            return;
+        }
+
+        int n = in.remaining();
+        if (packedLimit + n > packed.length)
+            packed = Arrays.copyOf(packed, Math.max(MIN_BUFFER, Math.max(packed.length * 2, packedLimit + n)));
+        in.get(packed, packedLimit, n);
+        packedLimit += n;
+
+        unpack();
+    }
+
+    // Move every complete packet to buf, keep the partial one
+    private void unpack() {
+        int pos = 0;
+
+        while (!corrupt) {
+            int header = 0, at = pos;
+            boolean complete = false;
+            for (int shift = 0; at < packedLimit && shift < 32; shift += 7) {
+                byte b = packed[at++];
+                header |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) {
+                // A header that long is garbage
+                corrupt = at - pos >= 5;
+                break;
+            }
+
+            int length = header >>> 1;
+            if (length > maxPacket()) {
+                corrupt = true;
+                break;
+            }
+            if (packedLimit - at < length)
+                break;
+
+            if ((header & 1) == 0) {
+                reserve(length);
+                System.arraycopy(packed, at, buf, limit, length);
+                limit += length;
+            } else {
+                inflate(at, length);
+            }
+            pos = at + length;
+        }
+
+        System.arraycopy(packed, pos, packed, 0, packedLimit - pos);
+        packedLimit -= pos;
+        if (packedLimit == 0)
+            packed = EMPTY;
+    }
+
+    // At most maxPacket() bytes come out of one packet, so a small packet
+    //  cannot blow up to fill the heap
+    private void inflate(int at, int length) {
+        if (inflater == null)
+            inflater = new Inflater(true);
+
+        inflater.reset();
+        inflater.setInput(packed, at, length);
+        try {
+            int total = 0;
+            while (!inflater.finished()) {
+                reserve(1024);
+                int n = inflater.inflate(buf, limit, Math.min(buf.length - limit, maxPacket() + 1 - total));
+                limit += n;
+                total += n;
+
+                if (total > maxPacket() || (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))) {
+                    corrupt = true;
+                    return;
+                }
+            }
+        } catch (DataFormatException e) {
+            corrupt = true;
+        }
+    }
+
+    // A line or a binary frame with its header
+    private int maxPacket() {
+        return maxLine + 16;
+    }
+
+    // A packet could not be taken apart, the rest of the input is lost
+    public boolean isCorrupt() {
+        return corrupt;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Switch to packets, from the next unread byte on
+    public void setCompressed(boolean compressed) {
+        if (compressed == this.compressed)
+            return;
+        this.compressed = compressed;
+        if (!compressed)
+            return;
+
+        // What is left was sent after /compress, it is packed
+        packedLimit = limit - start;
+        packed = Arrays.copyOfRange(buf, start, limit);
+        limit = scan = start;
+
+        unpack();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Switch to length-prefixed frames, from the next unread byte on
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+        scan = start;
+    }
+
+    // Look for the next complete line, see lineStart()/lineLength() on LINE
+    public int next() {
+        if (corrupt) {
+            // Report it once, then drop everything
+            if (!corruptReported) {
+                corruptReported = true;
+                start = scan = limit = 0;
+                buf = packed = EMPTY;
+                packedLimit = 0;
+                return TOO_LONG;
+            }
+            return NEED_MORE;
+        }
+
+        if (binary)
+            return nextFrame();
+
+        while (true) {
+            int nl = -1;
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    nl = i;
+                    break;
+                }
+            }
+
+            if (nl == -1) {
+                scan = limit;
+
+                if (discarding) {
+                    drained();
+                    return NEED_MORE;
+                }
+                // One byte more may still be the CR of a CRLF, or the
+                //  outcome would depend on where the read ended
+                if (limit - start > maxLine + 1) {
+                    // Drop what we have and everything up to the next newline
+                    discarding = true;
+                    drained();
+                    return TOO_LONG;
+                }
+                if (start == limit) {
+                    drained();
+                }
+                return NEED_MORE;
+            }
+
+            int from = start;
+            lineFrom = from;
+            start = scan = nl + 1;
+
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+
+            // Accept CRLF terminated lines too
+            int end = nl;
+            if (end > from && buf[end - 1] == '\r')
+                end--;
+
+            if (end - from > maxLine)
+                return TOO_LONG;
+
+            lineStart = from;
+            lineLength = end - from;
+            return LINE;
+        }
+    }
+
+    private int nextFrame() {
+        if (skip > 0) {
+            int n = Math.min(skip, limit - start);
+            start += n;
+            skip -= n;
+        }
+
+        // Varint length, at most 5 bytes
+        int length = 0, pos = start;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == limit) {
+                if (start == limit)
+                    drained();
+                return NEED_MORE;
+            }
+
+            byte b = buf[pos++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) break;
+
+            // Garbage, there is no way to find the next frame
+            if (shift == 28) {
+                skip = Integer.MAX_VALUE;
+                return TOO_LONG;
+            }
+        }
+
+        if (length > maxLine) {
+            start = scan = pos;
+            skip = length;
+            return TOO_LONG;
+        }
+        if (limit - pos < length)
+            return NEED_MORE;
+
+        lineFrom = start;
+        lineStart = pos;
+        lineLength = length;
+        start = scan = pos + length;
+        return LINE;
+    }
+
+    // Put the last line back, next() returns it again
+    public void unread() {
+        start = scan = lineFrom;
+    }
+
+    // Nothing pending, let the buffer go
+    private void drained() {
+        start = scan = limit = 0;
+        buf = EMPTY;
+    }
+
+    // Only valid until the next call to feed() or next()
+    public byte[] array() {
+        return buf;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+}
@@ -0,0 +1,385 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Headless load test: many simulated ChatClient sessions on one selector thread
+//
+//   java up.project.chat.LoadGenerator <port> [clients=1000] [rooms=10] [interval=1000]
+//        [size=64] [priv=0.05] [churn=0.01] [duration=60] [ramp=1000] [quiet=false]
+//
+// Every session takes a nick, joins a room and then, every interval ms (with
+//  jitter), sends a message; with probability priv it is a /priv to another
+//  session instead, with probability churn it switches rooms or leaves with
+//  /bye and reconnects. Message bodies start with the send time, so the
+//  latency of every delivery is measured end to end. Only talks to localhost.
+//  quiet=true leaves out the line printed every second.
+public class LoadGenerator {
+    // Session states
+    static private final int CONNECTING = 0;
+    static private final int ACTIVE = 1;
+    static private final int LEAVING = 2;
+
+    private final InetSocketAddress server;
+    private final int clients, rooms, interval, size, duration, ramp;
+    private final double priv, churn;
+    private final boolean quiet;
+
+    private final Random random = new Random();
+    private final Selector selector;
+    private final PriorityQueue<Session> timers = new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+    private final byte[] filler;
+
+    // Interval and whole-run numbers
+    private final Histogram latency = new Histogram();
+    private final Histogram totalLatency = new Histogram();
+    private long sent, received, errors, connects, connected;
+    private long totalSent, totalReceived;
+
+    // Latency since the last takeWindow(), for Soak on another thread
+    private final Histogram window = new Histogram();
+
+    LoadGenerator(int port, Map<String, String> options) throws IOException {
+        this.server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.clients = intOption(options, "clients", 1000);
+        this.rooms = intOption(options, "rooms", 10);
+        this.interval = intOption(options, "interval", 1000);
+        this.size = intOption(options, "size", 64);
+        this.duration = intOption(options, "duration", 60);
+        this.ramp = intOption(options, "ramp", 1000);
+        this.priv = Double.parseDouble(options.getOrDefault("priv", "0.05"));
+        this.churn = Double.parseDouble(options.getOrDefault("churn", "0.01"));
+        this.quiet = Boolean.parseBoolean(options.getOrDefault("quiet", "false"));
+
+        this.selector = Selector.open();
+        this.filler = new byte[Math.max(0, size)];
+        Arrays.fill(filler, (byte) 'x');
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: LoadGenerator <port> [clients=N] [rooms=N] [interval=ms] [size=bytes]"
+                    + " [priv=p] [churn=p] [duration=s] [ramp=connects/s] [quiet=true]");
+            return;
+        }
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq == -1) throw new IllegalArgumentException("expected key=value: " + args[i]);
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+
+        new LoadGenerator(Integer.parseInt(args[0]), options).run();
+    }
+
+    // Returns after duration seconds, with every session closed
+    void run() throws IOException {
+        long start = System.nanoTime();
+        long end = start + duration * 1_000_000_000L;
+        long nextReport = start + 1_000_000_000L;
+
+        // Connections are opened gradually, ramp per second
+        int opened = 0;
+        long rampStep = ramp > 0 ? 1_000_000_000L / ramp : 0;
+
+        if (!quiet)
+            System.out.println("   time   conns    sent/s    recv/s  errors     p50     p99   p99.9     max (us)");
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) break;
+
+            while (opened < clients && (rampStep == 0 || now - start >= opened * rampStep)) {
+                connect(new Session(opened++));
+            }
+
+            // Due actions
+            Session s;
+            while ((s = timers.peek()) != null && s.due <= now) {
+                timers.poll();
+                act(s, now);
+            }
+
+            if (now >= nextReport) {
+                report((now - start) / 1_000_000_000L);
+                nextReport += 1_000_000_000L;
+            }
+
+            long wait = Math.min(nextReport, end) - now;
+            if ((s = timers.peek()) != null) wait = Math.min(wait, s.due - now);
+            if (opened < clients) wait = Math.min(wait, rampStep);
+            selector.select(Math.max(1, wait / 1_000_000L));
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                handle(key);
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<>(selector.keys()))
+            drop((Session) key.attachment());
+        selector.close();
+
+        System.out.println();
+        System.out.println("Total: " + totalSent + " sent, " + totalReceived + " received, "
+                + connects + " connects");
+        System.out.println("Latency (us): " + summary(totalLatency));
+    }
+
+    private void connect(Session s) throws IOException {
+        s.channel = SocketChannel.open();
+        s.channel.configureBlocking(false);
+        s.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        s.state = CONNECTING;
+        s.framer = new LineFramer(ServerConfig.MAX_LINE);
+        s.out = new OutboundQueue();
+
+        if (s.channel.connect(server)) {
+            s.key = s.channel.register(selector, SelectionKey.OP_READ, s);
+            connected(s);
+        } else {
+            s.key = s.channel.register(selector, SelectionKey.OP_CONNECT, s);
+        }
+    }
+
+    private void connected(Session s) {
+        connects++;
+        connected++;
+        s.state = ACTIVE;
+        s.room = random.nextInt(rooms);
+        send(s, "/nick lg" + s.index + "\n/join room" + s.room + "\n");
+        schedule(s, System.nanoTime());
+    }
+
+    private void handle(SelectionKey key) {
+        Session s = (Session) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                s.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                connected(s);
+                return;
+            }
+            if (key.isReadable()) {
+                readBuffer.clear();
+                if (s.channel.read(readBuffer) == -1) {
+                    drop(s);
+                    return;
+                }
+                readBuffer.flip();
+                s.framer.feed(readBuffer);
+                while (s.framer.next() == LineFramer.LINE) {
+                    line(s, s.framer.array(), s.framer.lineStart(), s.framer.lineLength());
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(s);
+            }
+        } catch (IOException e) {
+            errors++;
+            drop(s);
+        }
+    }
+
+    // Look at a server line, timing every message that carries our timestamp
+    private void line(Session s, byte[] b, int off, int len) {
+        if (startsWith(b, off, len, "MESSAGE ") || startsWith(b, off, len, "PRIVATE ")) {
+            received++;
+
+            // Skip the kind and the nick, then expect t=<nanos>
+            int i = off + 8;
+            int end = off + len;
+            while (i < end && b[i] != ' ') i++;
+            i++;
+            if (i + 2 < end && b[i] == 't' && b[i + 1] == '=') {
+                long t = 0;
+                for (i += 2; i < end && b[i] >= '0' && b[i] <= '9'; i++) t = t * 10 + (b[i] - '0');
+                latency.record((System.nanoTime() - t) / 1000);
+            }
+        } else if (startsWith(b, off, len, "ERROR")) {
+            errors++;
+        } else if (startsWith(b, off, len, "BYE")) {
+            drop(s);
+        }
+    }
+
+    private void act(Session s, long now) {
+        if (s.state != ACTIVE) {
+            // Reconnect after a /bye
+            if (s.state == LEAVING && s.channel == null) {
+                try {
+                    connect(s);
+                } catch (IOException e) {
+                    errors++;
+                }
+            }
+            return;
+        }
+
+        double r = random.nextDouble();
+        if (r < churn) {
+            if (random.nextBoolean()) {
+                s.room = random.nextInt(rooms);
+                send(s, "/join room" + s.room + "\n");
+            } else {
+                s.state = LEAVING;
+                send(s, "/bye\n");
+                return;
+            }
+        } else if (r < churn + priv && clients > 1) {
+            int to = random.nextInt(clients);
+            send(s, "/priv lg" + to + " t=" + System.nanoTime() + " ", filler);
+            sent++;
+        } else {
+            send(s, "t=" + System.nanoTime() + " ", filler);
+            sent++;
+        }
+
+        schedule(s, now);
+    }
+
+    private void schedule(Session s, long now) {
+        // Up to +-50% jitter so the sessions do not move in lockstep
+        long base = interval * 1_000_000L;
+        s.due = now + base / 2 + (long) (random.nextDouble() * base);
+        timers.add(s);
+    }
+
+    private void send(Session s, String head) {
+        send(s, head, null);
+    }
+
+    // Messages end with the filler bytes and a newline
+    private void send(Session s, String head, byte[] body) {
+        if (s.channel == null) return;
+
+        byte[] h = head.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(h.length + (body == null ? 0 : body.length + 1));
+        frame.put(h);
+        if (body != null) frame.put(body).put((byte) '\n');
+        frame.flip();
+
+        boolean idle = s.out.isEmpty();
+        s.out.add(frame);
+        if (idle) {
+            try {
+                flush(s);
+            } catch (IOException e) {
+                errors++;
+                drop(s);
+            }
+        }
+    }
+
+    private void flush(Session s) throws IOException {
+        if (s.state == CONNECTING) return;
+
+        if (s.out.flush(s.channel)) {
+            s.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Connection is gone, a session that said /bye comes back a bit later
+    private void drop(Session s) {
+        if (s.channel == null) return;
+
+        try {
+            s.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        s.channel = null;
+        connected--;
+
+        if (s.state == LEAVING) {
+            timers.remove(s);
+            s.due = System.nanoTime() + interval * 1_000_000L;
+            timers.add(s);
+        } else {
+            timers.remove(s);
+        }
+    }
+
+    private void report(long second) {
+        if (!quiet)
+            System.out.printf("%6ds %7d %9d %9d %7d %s%n", second, connected, sent, received, errors,
+                    columns(latency));
+
+        totalSent += sent;
+        totalReceived += received;
+        totalLatency.add(latency);
+        synchronized (window) {
+            window.add(latency);
+        }
+        latency.reset();
+        sent = received = errors = 0;
+    }
+
+    // Deliveries timed since the last call
+    Histogram takeWindow() {
+        Histogram h = new Histogram();
+        synchronized (window) {
+            h.add(window);
+            window.reset();
+        }
+        return h;
+    }
+
+    private static String columns(Histogram h) {
+        return String.format("%7d %7d %7d %9d", h.percentile(50), h.percentile(99), h.percentile(99.9), h.max());
+    }
+
+    private static String summary(Histogram h) {
+        return String.format("p50 %d, p90 %d, p99 %d, p99.9 %d, max %d, mean %.1f",
+                h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max(), h.mean());
+    }
+
+    private static boolean startsWith(byte[] b, int off, int len, String prefix) {
+        if (len < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b[off + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int def) {
+        String v = options.get(name);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    // One simulated client
+    private static class Session {
+        final int index;
+        SocketChannel channel;
+        SelectionKey key;
+        LineFramer framer;
+        OutboundQueue out;
+        int state;
+        int room;
+        long due;
+
+        Session(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package up.project.chat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log
+//  callers copy the level, time, template and up to two arguments into a
+//  preallocated slot of a lock-free ring; a daemon thread formats and writes
+//  the records in batches. A disabled level returns before touching anything,
+//  so call sites allocate nothing as long as they pass existing objects and
+//  keep the template a constant ("{}" marks where an argument goes).
+//  When the ring is full the record is dropped and counted, the event loop
+//  never waits on the output.
+final class Log {
+    static final int ERROR = 0;
+    static final int WARN = 1;
+    static final int INFO = 2;
+    static final int DEBUG = 3;
+
+    static private final String[] LEVEL_NAMES = { "ERROR", "WARN", "INFO", "DEBUG" };
+
+    static private final int LEVEL = parseLevel(ServerConfig.LOG_LEVEL);
+
+    // Keep one in SAMPLE records at INFO and DEBUG, warnings and errors are never sampled
+    static private final int SAMPLE = Math.max(1, ServerConfig.LOG_SAMPLE);
+
+    // Ring size, rounded up to a power of two
+    static private final int CAPACITY = Integer.highestOneBit(Math.max(2, ServerConfig.LOG_BUFFER - 1) << 1);
+
+    static private final int BATCH = 256;
+
+    static private final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Slot i is free for position p when seqs[i] == p, and holds a record for p when seqs[i] == p + 1
+    static private final AtomicLongArray seqs = new AtomicLongArray(CAPACITY);
+    static private final int[] levels = new int[CAPACITY];
+    static private final long[] times = new long[CAPACITY];
+    static private final String[] templates = new String[CAPACITY];
+    static private final Object[] args1 = new Object[CAPACITY];
+    static private final Object[] args2 = new Object[CAPACITY];
+    static private final Throwable[] errors = new Throwable[CAPACITY];
+
+    static private final AtomicLong tail = new AtomicLong();
+    static private final AtomicLong sampled = new AtomicLong();
+    static private final AtomicLong dropped = new AtomicLong();
+
+    // Only touched by the drainer
+    static private long head;
+    static private long reportedDrops;
+
+    static private final StringBuilder line = new StringBuilder(256);
+    static private final OutputStream out = openOutput();
+    static private volatile Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            seqs.set(i, i);
+
+        Thread t = new Thread(Log::drainLoop, "log-writer");
+        t.setDaemon(true);
+        t.start();
+        drainer = t;
+
+        // Daemon threads die with the JVM, write what is left on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            drainer = null;
+            flush();
+        }, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    // Write out everything logged so far, also for other shutdown hooks
+    //  that log after the one above has run
+    static void flush() {
+        synchronized (line) {
+            while (drain() > 0) {
+                // Until the ring is empty
+            }
+        }
+    }
+
+    static boolean enabled(int level) {
+        return level <= LEVEL;
+    }
+
+    static void error(String template, Object arg1) {
+        log(ERROR, template, arg1, null, null);
+    }
+
+    static void error(String template, Object arg1, Throwable error) {
+        log(ERROR, template, arg1, null, error);
+    }
+
+    static void warn(String message) {
+        log(WARN, message, null, null, null);
+    }
+
+    static void warn(String template, Object arg1) {
+        log(WARN, template, arg1, null, null);
+    }
+
+    static void warn(String template, Object arg1, Object arg2) {
+        log(WARN, template, arg1, arg2, null);
+    }
+
+    static void info(String template, Object arg1) {
+        log(INFO, template, arg1, null, null);
+    }
+
+    static void info(String template, Object arg1, Object arg2) {
+        log(INFO, template, arg1, arg2, null);
+    }
+
+    static void debug(String template, Object arg1) {
+        log(DEBUG, template, arg1, null, null);
+    }
+
+    static void debug(String template, Object arg1, Object arg2) {
+        log(DEBUG, template, arg1, arg2, null);
+    }
+
+    static void log(int level, String template, Object arg1, Object arg2, Throwable error) {
+        if (level > LEVEL)
+            return;
+
+        if (SAMPLE > 1 && level >= INFO && sampled.getAndIncrement() % SAMPLE != 0)
+            return;
+
+        // Claim a free slot, the CAS only races with other producers
+        long pos;
+        int slot;
+        do {
+            pos = tail.get();
+            slot = (int) pos & (CAPACITY - 1);
+
+            if (seqs.get(slot) != pos) {
+                // The drainer is a full lap behind
+                if (seqs.get(slot) < pos) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                continue;
+            }
+        } while (!tail.compareAndSet(pos, pos + 1));
+
+        levels[slot] = level;
+        times[slot] = System.currentTimeMillis();
+        templates[slot] = template;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        errors[slot] = error;
+
+        // Publish, the volatile write orders the plain stores above
+        seqs.set(slot, pos + 1);
+    }
+
+    private static void drainLoop() {
+        while (drainer != null) {
+            int n;
+            synchronized (line) {
+                n = drain();
+            }
+
+            // Nothing to do, look again shortly
+            if (n == 0)
+                LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    // Format up to BATCH records and write them with a single call
+    private static int drain() {
+        int n = 0;
+        line.setLength(0);
+
+        while (n < BATCH) {
+            int slot = (int) head & (CAPACITY - 1);
+            if (seqs.get(slot) != head + 1)
+                break;
+
+            format(slot);
+
+            templates[slot] = null;
+            args1[slot] = null;
+            args2[slot] = null;
+            errors[slot] = null;
+            seqs.set(slot, head + CAPACITY);
+            head++;
+            n++;
+        }
+
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            line.append(TIME.format(Instant.now())).append(" WARN  ")
+                    .append(drops - reportedDrops).append(" log records dropped, buffer full\n");
+            reportedDrops = drops;
+        }
+
+        if (line.length() > 0) {
+            try {
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // Nowhere left to report this
+            }
+        }
+
+        return n;
+    }
+
+    private static void format(int slot) {
+        String name = LEVEL_NAMES[levels[slot]];
+        line.append(TIME.format(Instant.ofEpochMilli(times[slot]))).append(' ').append(name);
+        for (int i = name.length(); i < 6; i++)
+            line.append(' ');
+
+        // Replace each {} with the next argument
+        String template = templates[slot];
+        Object[] args = { args1[slot], args2[slot] };
+        int used = 0, from = 0, at;
+        while (used < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at).append(args[used++]);
+            from = at + 2;
+        }
+        line.append(template, from, template.length()).append('\n');
+
+        if (errors[slot] != null) {
+            StringWriter trace = new StringWriter();
+            errors[slot].printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+                return i;
+        }
+        return INFO;
+    }
+
+    private static OutputStream openOutput() {
+        String file = ServerConfig.LOG_FILE;
+        if (file == null)
+            return System.out;
+
+        try {
+            return new FileOutputStream(file, true);
+        } catch (IOException e) {
+            System.err.println("Cannot open log file " + file + ", logging to stdout: " + e);
+            return System.out;
+        }
+    }
+}
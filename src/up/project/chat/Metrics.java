@@ -0,0 +1,307 @@
+package up.project.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Server counters and histograms
+//  updates are LongAdder increments and Histogram records, so the hot paths
+//  never allocate or lock; reading them goes through JMX or the /stats command
+final class Metrics implements MetricsMXBean {
+    // Command kinds, index into commands
+    static final int CMD_MESSAGE = 0;
+    static final int CMD_NICK = 1;
+    static final int CMD_JOIN = 2;
+    static final int CMD_LEAVE = 3;
+    static final int CMD_BYE = 4;
+    static final int CMD_PRIV = 5;
+    static final int CMD_STATS = 6;
+    static final int CMD_UNKNOWN = 7;
+    static final int CMD_TOO_LONG = 8;
+    static final int CMD_RESUME = 9;
+
+    static private final String[] CMD_NAMES = {
+            "message", "nick", "join", "leave", "bye", "priv", "stats", "unknown", "tooLong", "resume"
+    };
+
+    static final LongAdder accepted = new LongAdder();
+    static final LongAdder closed = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder partialWrites = new LongAdder();
+    static final LongAdder timeouts = new LongAdder();
+    // Lines over a rate limit, by what was done with them
+    static final LongAdder limitedDrops = new LongAdder();
+    static final LongAdder limitedDelays = new LongAdder();
+    static final LongAdder limitedDisconnects = new LongAdder();
+    static final LongAdder pings = new LongAdder();
+    // Frames handed to a client's queue, and the write calls it took to send them
+    static final LongAdder delivered = new LongAdder();
+    static final LongAdder writeCalls = new LongAdder();
+    // Pooled buffer bytes lent out, and buffers that had to come from the heap
+    static final LongAdder poolInUse = new LongAdder();
+    static final LongAdder poolMisses = new LongAdder();
+    // Frame bytes before and after deflate, once per frame however many clients get it
+    static final LongAdder deflatedIn = new LongAdder();
+    static final LongAdder deflatedOut = new LongAdder();
+    // Shards of large rooms handed to the fan-out threads
+    static final LongAdder fanoutShards = new LongAdder();
+    // Private messages kept for nicks nobody held, and bytes of them handed out later
+    static final LongAdder outboxStored = new LongAdder();
+    static final LongAdder outboxDelivered = new LongAdder();
+    static final LongAdder[] commands = new LongAdder[CMD_NAMES.length];
+
+    // Members reached per room broadcast
+    static final Histogram fanout = new Histogram();
+
+    // Bytes still queued for a client after a write that did not finish
+    static final Histogram queueDepth = new Histogram();
+
+    // Time a coalesced batch waited for its flush, in microseconds
+    static final Histogram flushDelayMicros = new Histogram();
+
+    // Time spent handling one round of selected keys, in microseconds
+    static final Histogram loopMicros = new Histogram();
+
+    static {
+        for (int i = 0; i < commands.length; i++)
+            commands[i] = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    static long open() {
+        return accepted.sum() - closed.sum();
+    }
+
+    static void command(int kind) {
+        commands[kind].increment();
+    }
+
+    // Publish over JMX, failures only cost us the JMX view
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new Metrics(), new ObjectName("up.project.chat:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MBean: {}", e);
+        }
+    }
+
+    static String summary() {
+        StringBuilder sb = new StringBuilder()
+                .append("accepted=").append(accepted.sum())
+                .append(" open=").append(open())
+                .append(" bytesIn=").append(bytesIn.sum())
+                .append(" bytesOut=").append(bytesOut.sum())
+                .append(" partialWrites=").append(partialWrites.sum())
+                .append(" timeouts=").append(timeouts.sum())
+                .append(" pings=").append(pings.sum())
+                .append(" limited.drop=").append(limitedDrops.sum())
+                .append(" limited.delay=").append(limitedDelays.sum())
+                .append(" limited.disconnect=").append(limitedDisconnects.sum())
+                .append(" delivered=").append(delivered.sum())
+                .append(" writeCalls=").append(writeCalls.sum())
+                .append(" pool.slabBytes=").append(BufferPool.slabBytes())
+                .append(" pool.inUse=").append(poolInUse.sum())
+                .append(" pool.misses=").append(poolMisses.sum())
+                .append(" deflatedIn=").append(deflatedIn.sum())
+                .append(" deflatedOut=").append(deflatedOut.sum());
+        for (int i = 0; i < commands.length; i++)
+            sb.append(" cmd.").append(CMD_NAMES[i]).append('=').append(commands[i].sum());
+        sb.append(" fanout.p99=").append(fanout.percentile(99))
+                .append(" fanout.max=").append(fanout.max())
+                .append(" fanout.shards=").append(fanoutShards.sum())
+                .append(" outbox.stored=").append(outboxStored.sum())
+                .append(" outbox.deliveredBytes=").append(outboxDelivered.sum())
+                .append(" queue.p99=").append(queueDepth.percentile(99))
+                .append(" queue.max=").append(queueDepth.max())
+                .append(" flushDelayUs.p50=").append(flushDelayMicros.percentile(50))
+                .append(" flushDelayUs.p99=").append(flushDelayMicros.percentile(99))
+                .append(" loopUs.p50=").append(loopMicros.percentile(50))
+                .append(" loopUs.p99=").append(loopMicros.percentile(99))
+                .append(" loopUs.max=").append(loopMicros.max());
+        return sb.toString();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return closed.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return open();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getPartialWrites() {
+        return partialWrites.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getPings() {
+        return pings.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRateLimited() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("drop", limitedDrops.sum());
+        m.put("delay", limitedDelays.sum());
+        m.put("disconnect", limitedDisconnects.sum());
+        return m;
+    }
+
+    @Override
+    public long getDeliveredFrames() {
+        return delivered.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public double getWriteCallsPerFrame() {
+        long n = delivered.sum();
+        return n == 0 ? 0 : (double) writeCalls.sum() / n;
+    }
+
+    @Override
+    public long getFanoutShards() {
+        return fanoutShards.sum();
+    }
+
+    @Override
+    public long getOutboxStored() {
+        return outboxStored.sum();
+    }
+
+    @Override
+    public long getOutboxDeliveredBytes() {
+        return outboxDelivered.sum();
+    }
+
+    @Override
+    public long getFlushDelayMicrosP50() {
+        return flushDelayMicros.percentile(50);
+    }
+
+    @Override
+    public long getFlushDelayMicrosP99() {
+        return flushDelayMicros.percentile(99);
+    }
+
+    @Override
+    public long getPoolSlabBytes() {
+        return BufferPool.slabBytes();
+    }
+
+    @Override
+    public long getPoolInUseBytes() {
+        return poolInUse.sum();
+    }
+
+    @Override
+    public long getPoolMisses() {
+        return poolMisses.sum();
+    }
+
+    @Override
+    public long getDeflatedBytesIn() {
+        return deflatedIn.sum();
+    }
+
+    @Override
+    public long getDeflatedBytesOut() {
+        return deflatedOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommands() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (int i = 0; i < commands.length; i++)
+            m.put(CMD_NAMES[i], commands[i].sum());
+        return m;
+    }
+
+    @Override
+    public double getFanoutMean() {
+        return fanout.mean();
+    }
+
+    @Override
+    public long getFanoutP99() {
+        return fanout.percentile(99);
+    }
+
+    @Override
+    public long getFanoutMax() {
+        return fanout.max();
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return queueDepth.percentile(99);
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.max();
+    }
+
+    @Override
+    public long getLoopMicrosP50() {
+        return loopMicros.percentile(50);
+    }
+
+    @Override
+    public long getLoopMicrosP99() {
+        return loopMicros.percentile(99);
+    }
+
+    @Override
+    public long getLoopMicrosMax() {
+        return loopMicros.max();
+    }
+
+    @Override
+    public String getSummary() {
+        return summary();
+    }
+
+    // Histograms only, the counters keep counting since start
+    @Override
+    public void reset() {
+        fanout.reset();
+        queueDepth.reset();
+        flushDelayMicros.reset();
+        loopMicros.reset();
+    }
+}
@@ -0,0 +1,84 @@
+package up.project.chat;
+
+import java.util.Map;
+
+// JMX view of Metrics, registered as up.project.chat:type=Metrics
+public interface MetricsMXBean {
+    long getAcceptedConnections();
+
+    long getClosedConnections();
+
+    long getOpenConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getPartialWrites();
+
+    // Connections closed for a handshake or idle timeout, and pings sent
+    long getTimeouts();
+
+    long getPings();
+
+    // Lines over a rate limit, by action taken
+    Map<String, Long> getRateLimited();
+
+    // Frames queued for clients and the write calls that sent them,
+    //  the ratio is what flush coalescing brings down
+    long getDeliveredFrames();
+
+    long getWriteCalls();
+
+    double getWriteCallsPerFrame();
+
+    // Wait added by flush coalescing
+    long getFlushDelayMicrosP50();
+
+    long getFlushDelayMicrosP99();
+
+    // Direct memory taken by the buffer pool, the part lent out, and
+    //  acquires that fell back to the heap
+    long getPoolSlabBytes();
+
+    long getPoolInUseBytes();
+
+    long getPoolMisses();
+
+    // Frame bytes handed to deflate for /compress clients, and what came out
+    long getDeflatedBytesIn();
+
+    long getDeflatedBytesOut();
+
+    // Commands run so far, by kind
+    Map<String, Long> getCommands();
+
+    double getFanoutMean();
+
+    long getFanoutP99();
+
+    long getFanoutMax();
+
+    // Shards of large rooms delivered by the fan-out threads
+    long getFanoutShards();
+
+    // Private messages kept for offline nicks, and bytes of them delivered on /nick
+    long getOutboxStored();
+
+    long getOutboxDeliveredBytes();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    long getLoopMicrosP50();
+
+    long getLoopMicrosP99();
+
+    long getLoopMicrosMax();
+
+    // Everything above on one line, as sent by /stats
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,86 @@
+package up.project.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Outgoing link to one peer node
+//  any thread queues encoded messages, the link's own thread writes whatever
+//  is waiting with a single flush, so a burst of frames costs one syscall.
+//  The link reconnects on its own; while it is down messages are dropped
+//  and the peer gets our full state again once it is back
+final class NodeLink extends Thread {
+    static private final int RETRY_MILLIS = 1000;
+
+    private final int node;
+    private final InetSocketAddress address;
+    private final Cluster cluster;
+
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private volatile boolean connected;
+
+    NodeLink(int node, InetSocketAddress address, Cluster cluster) {
+        super("link-" + node);
+        this.node = node;
+        this.address = address;
+        this.cluster = cluster;
+        setDaemon(true);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void send(byte[] message) {
+        if (connected)
+            queue.add(message);
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, RETRY_MILLIS);
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+                queue.clear();
+                out.write(cluster.hello());
+                out.flush();
+                connected = true;
+                Log.info("Linked to node {} at {}", node, address);
+
+                cluster.resync(this);
+
+                while (true) {
+                    byte[] message = queue.take();
+                    do {
+                        out.write(message);
+                    } while ((message = queue.poll()) != null);
+                    out.flush();
+                }
+
+            } catch (IOException e) {
+                if (connected)
+                    Log.warn("Link to node {} lost: {}", node, e);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (connected) {
+                connected = false;
+                cluster.linkDown(node);
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Frames waiting to be written to a single client, in order
+//  kept in a ring so whole runs of frames go out in one gathering write;
+//  a file region takes a slot of its own and ends the run before it
+class OutboundQueue {
+    // Most frames handed to a single gathering write
+    static private final int MAX_GATHER = 64;
+
+    // Stands in the frame ring for a slot holding a file region
+    static private final ByteBuffer REGION = ByteBuffer.allocate(0);
+
+    private ByteBuffer[] ring = new ByteBuffer[16];
+    private FileRegion[] regions = new FileRegion[16];
+    private int head, count, regionCount;
+    private long bytes;
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void add(ByteBuffer frame) {
+        if (count == ring.length)
+            grow();
+
+        ring[(head + count) & (ring.length - 1)] = frame;
+        count++;
+        bytes += frame.remaining();
+    }
+
+    public void add(FileRegion region) {
+        if (count == ring.length)
+            grow();
+
+        int slot = (head + count) & (ring.length - 1);
+        ring[slot] = REGION;
+        regions[slot] = region;
+        count++;
+        regionCount++;
+        bytes += region.remaining();
+    }
+
+    // The next frame, null if the queue is empty or a file region is next
+    public ByteBuffer poll() {
+        if (count == 0 || ring[head] == REGION)
+            return null;
+
+        ByteBuffer frame = ring[head];
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        count--;
+        bytes -= frame.remaining();
+        return frame;
+    }
+
+    // The file region at the head, null if a frame is next; the caller
+    //  releases it once it is out
+    public FileRegion pollRegion() {
+        if (count == 0 || ring[head] != REGION)
+            return null;
+
+        FileRegion region = regions[head];
+        releaseHead();
+        bytes -= region.remaining();
+        return region;
+    }
+
+    // Drop the oldest frame that has not been partially written yet
+    //  (dropping a half-sent frame would corrupt the stream)
+    public boolean dropOldest() {
+        if (count == 0)
+            return false;
+
+        if (!isStarted(head)) {
+            bytes -= remaining(head);
+            if (ring[head] == REGION)
+                regions[head].release();
+            releaseHead();
+            return true;
+        }
+
+        if (count == 1)
+            return false;
+
+        // Keep the started entry, drop the one right after it
+        int second = (head + 1) & (ring.length - 1);
+        bytes -= remaining(second);
+        if (ring[second] == REGION) {
+            regions[second].release();
+            regionCount--;
+        }
+        ring[second] = ring[head];
+        regions[second] = regions[head];
+        ring[head] = null;
+        regions[head] = null;
+        head = second;
+        count--;
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) & (ring.length - 1);
+            if (ring[slot] == REGION)
+                regions[slot].release();
+            ring[slot] = null;
+            regions[slot] = null;
+        }
+        head = count = regionCount = 0;
+        bytes = 0;
+    }
+
+    // Write as much as the socket takes right now
+    //  returns true if everything was written
+    public boolean flush(SocketChannel channel) throws IOException {
+        while (count > 0) {
+            if (ring[head] == REGION) {
+                FileRegion region = regions[head];
+                long written = region.transferTo(channel);
+                Metrics.writeCalls.increment();
+                bytes -= written;
+                Metrics.bytesOut.add(written);
+
+                if (region.remaining() > 0) {
+                    Metrics.partialWrites.increment();
+                    Metrics.queueDepth.record(bytes);
+                    return false;
+                }
+                releaseHead();
+                continue;
+            }
+
+            // Gather the frames up to the end of the ring or the next file
+            //  region, the rest goes next round
+            int run = Math.min(Math.min(count, ring.length - head), MAX_GATHER);
+            if (regionCount > 0) {
+                for (int i = 1; i < run; i++) {
+                    if (ring[head + i] == REGION) {
+                        run = i;
+                        break;
+                    }
+                }
+            }
+            long written = channel.write(ring, head, run);
+            Metrics.writeCalls.increment();
+            bytes -= written;
+            Metrics.bytesOut.add(written);
+
+            // Release the frames that went out completely
+            int mask = ring.length - 1, released = 0;
+            while (released < run && !ring[head].hasRemaining()) {
+                ring[head] = null;
+                head = (head + 1) & mask;
+                count--;
+                released++;
+            }
+
+            // Socket buffer is full, wait for OP_WRITE
+            if (released < run) {
+                Metrics.partialWrites.increment();
+                Metrics.queueDepth.record(bytes);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isStarted(int slot) {
+        return ring[slot] == REGION ? regions[slot].isStarted() : ring[slot].position() != 0;
+    }
+
+    private long remaining(int slot) {
+        return ring[slot] == REGION ? regions[slot].remaining() : ring[slot].remaining();
+    }
+
+    private void releaseHead() {
+        if (ring[head] == REGION) {
+            regions[head] = null;
+            regionCount--;
+        }
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        count--;
+    }
+
+    private void grow() {
+        ByteBuffer[] bigger = new ByteBuffer[ring.length * 2];
+        FileRegion[] biggerRegions = new FileRegion[ring.length * 2];
+        for (int i = 0; i < count; i++) {
+            bigger[i] = ring[(head + i) & (ring.length - 1)];
+            biggerRegions[i] = regions[(head + i) & (ring.length - 1)];
+        }
+        ring = bigger;
+        regions = biggerRegions;
+        head = 0;
+    }
+}
@@ -0,0 +1,286 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Private messages for nicks nobody holds, one append-only file per nick
+//  a message is appended in its text form; whoever claims the nick next gets
+//  the whole file as a single HISTORY frame, before the OK for its /nick, and
+//  the file is deleted. A nick's file holds at most chat.outbox.maxBytes,
+//  all of them together chat.outbox.totalBytes. The files outlive restarts.
+//  The threads serving clients only count bytes and queue the work, files
+//  are written, read and deleted on the outbox thread in the order asked
+final class Outbox {
+    static final int STORED = 0;
+    static final int FULL = 1;
+    // Claimed meanwhile with nothing waiting, the message can go straight to the holder
+    static final int HELD = 2;
+
+    static private final String PREFIX = "nick-";
+
+    private final Path dir;
+    private final Registry registry;
+    private final ConcurrentHashMap<Symbol, Box> boxes = new ConcurrentHashMap<>();
+    private final AtomicLong total = new AtomicLong();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "outbox");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Outbox(Path dir, Registry registry) {
+        this.dir = dir;
+        this.registry = registry;
+    }
+
+    // null when no directory is configured or it cannot be used
+    static Outbox open(String dir, Registry registry) {
+        if (dir == null)
+            return null;
+
+        Outbox outbox = new Outbox(Paths.get(dir), registry);
+        try {
+            outbox.load();
+        } catch (IOException e) {
+            Log.warn("Cannot open outbox in {}: {}", dir, e);
+            outbox.writer.shutdown();
+            return null;
+        }
+        return outbox;
+    }
+
+    // Pick up the files left by the previous run
+    private void load() throws IOException {
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*")) {
+            for (Path file : files) {
+                long size = Files.size(file);
+                if (size == 0) {
+                    Files.delete(file);
+                    continue;
+                }
+
+                String name = nickOf(file.getFileName().toString());
+                if (name == null) {
+                    Log.warn("Ignoring {} in the outbox", file);
+                    continue;
+                }
+
+                // The box keeps the reference
+                Symbol nick = SymbolTable.intern(name);
+                Box box = new Box(file);
+                box.size = box.written = size;
+                boxes.put(nick, box);
+                total.addAndGet(size);
+            }
+        }
+
+        if (!boxes.isEmpty())
+            Log.info("Outbox has messages for {} nicks, {} bytes", boxes.size(), total.get());
+    }
+
+    // Finish the writes queued so far, on shutdown
+    void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS))
+                Log.warn("Outbox writes still pending at exit");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Messages are waiting for nick, later ones must queue up behind them
+    boolean isPending(Symbol nick) {
+        return boxes.containsKey(nick);
+    }
+
+    // Keep msg, a PRIVATE frame, for nick; see STORED, FULL and HELD. The
+    //  caller holds a reference to nick, a new box takes its own
+    int store(Symbol nick, Frame msg) {
+        ByteBuffer text = msg.text();
+        int len = text.remaining();
+
+        while (true) {
+            Box box = boxes.computeIfAbsent(nick, n -> {
+                SymbolTable.retain(n);
+                return new Box(dir.resolve(History.fileName(PREFIX, n)));
+            });
+            synchronized (box) {
+                // Delivered while we were getting it, take a fresh one
+                if (box.gone)
+                    continue;
+
+                if (box.late == null && box.size == 0 && nick.holder() != null) {
+                    drop(nick, box);
+                    return HELD;
+                }
+                if (box.size + len > ServerConfig.OUTBOX_MAX_BYTES || total.get() + len > ServerConfig.OUTBOX_TOTAL_BYTES) {
+                    if (box.late == null && box.size == 0)
+                        drop(nick, box);
+                    return FULL;
+                }
+
+                box.size += len;
+                total.addAndGet(len);
+                Metrics.outboxStored.increment();
+
+                // The file is being read for the new holder, this goes right behind it
+                if (box.late != null)
+                    box.late.add(msg);
+                else
+                    append(box, text.duplicate());
+                return STORED;
+            }
+        }
+    }
+
+    // Send cc everything kept for nick, which it holds now, then run then;
+    //  the file is read on the outbox thread, the frames are queued and then
+    //  run on the thread serving cc. Messages stored meanwhile follow the
+    //  file, so nothing for the nick overtakes what was kept before
+    void deliver(Symbol nick, ClientInfo cc, Runnable then) {
+        Box box = boxes.get(nick);
+        if (box != null) {
+            synchronized (box) {
+                if (!box.gone && box.late == null) {
+                    box.late = new ArrayList<>();
+                    writer.execute(() -> read(nick, box, cc, then));
+                    return;
+                }
+            }
+        }
+        cc.getTransport().resume(cc, then);
+    }
+
+    // On the outbox thread, behind every append queued before
+    private void read(Symbol nick, Box box, ClientInfo cc, Runnable then) {
+        byte[] data;
+        try {
+            data = box.written == 0 ? new byte[0] : Files.readAllBytes(box.file);
+        } catch (IOException e) {
+            // The file stays for the next holder, or the next run
+            Log.warn("Cannot read outbox of {}: {}", nick.name, e);
+            data = null;
+        }
+
+        byte[] read = data;
+        cc.getTransport().resume(cc, () -> {
+            handOver(nick, box, cc, read);
+            then.run();
+        });
+    }
+
+    // On the thread serving cc; data is the file, null if it could not be read
+    private void handOver(Symbol nick, Box box, ClientInfo cc, byte[] data) {
+        synchronized (box) {
+            List<Frame> late = box.late;
+            box.late = null;
+
+            if (data == null || !registry.hasClient(cc) || nick.holder() != cc) {
+                // Gone meanwhile, or unreadable: all kept for the next holder
+                for (Frame msg : late)
+                    append(box, msg.text().duplicate());
+                return;
+            }
+
+            if (data.length > 0)
+                cc.getTransport().send(cc, new Frame(Frame.HISTORY, null, ByteBuffer.wrap(data).asReadOnlyBuffer()));
+            for (Frame msg : late)
+                cc.getTransport().send(cc, msg);
+
+            // Queued before the box goes, so a new box's first append comes after
+            Path file = box.file;
+            writer.execute(() -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    Log.warn("Cannot delete outbox file {}: {}", file, e);
+                }
+            });
+            total.addAndGet(-box.size);
+            Metrics.outboxDelivered.add(box.size);
+            drop(nick, box);
+        }
+    }
+
+    // Queue text for the end of the box's file, with the box locked
+    private void append(Box box, ByteBuffer text) {
+        writer.execute(() -> {
+            int len = text.remaining();
+            try (FileChannel file = FileChannel.open(box.file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                try {
+                    while (text.hasRemaining())
+                        file.write(text);
+                } catch (IOException e) {
+                    // No half message left behind
+                    file.truncate(box.written);
+                    throw e;
+                }
+                box.written += len;
+            } catch (IOException e) {
+                Log.warn("Cannot write outbox file {}: {}", box.file, e);
+                synchronized (box) {
+                    box.size -= len;
+                    total.addAndGet(-len);
+                }
+            }
+        });
+    }
+
+    private void drop(Symbol nick, Box box) {
+        box.gone = true;
+        if (boxes.remove(nick, box))
+            SymbolTable.release(nick);
+    }
+
+    // The nick back from its hex encoded file name, null if it is not one of ours
+    private static String nickOf(String fileName) {
+        int digits = fileName.length() - PREFIX.length();
+        if (digits == 0 || digits % 2 != 0)
+            return null;
+
+        byte[] b = new byte[digits / 2];
+        for (int i = 0; i < b.length; i++) {
+            int hi = Character.digit(fileName.charAt(PREFIX.length() + 2 * i), 16);
+            int lo = Character.digit(fileName.charAt(PREFIX.length() + 2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                return null;
+            b[i] = (byte) (hi << 4 | lo);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // The file of one nick; the box is locked for everything but written,
+    //  which only the outbox thread touches
+    private static final class Box {
+        final Path file;
+        // Bytes kept, and bytes in the file so far
+        long size, written;
+        // Messages stored while the file is read for a new holder, null otherwise
+        List<Frame> late;
+        // Delivered or given up, no longer in boxes
+        boolean gone;
+
+        Box(Path file) {
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package up.project.chat;
+
+// What to do with a client whose outbound queue went past the high-water mark
+public enum OverflowPolicy {
+    // Discard the oldest frames that were not started yet
+    DROP_OLDEST,
+
+    // Close the connection
+    DISCONNECT,
+
+    // Stop reading from the client until its queue drains
+    PAUSE_READ
+}
@@ -0,0 +1,109 @@
+package up.project.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Client side of /compress: reads packets (see Frame) and hands out what
+//  is in them, as if the server had sent the plain bytes
+final class PackedInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater(true);
+
+    // The current packet's bytes, data[pos, limit)
+    private byte[] data = new byte[1024];
+    private int pos, limit;
+
+    PackedInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(data, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    // Read packets until one has bytes, false at the end of the stream
+    private boolean fill() throws IOException {
+        while (pos == limit) {
+            int header = readHeader();
+            if (header == -1)
+                return false;
+
+            int length = header >>> 1;
+            byte[] body = new byte[length];
+            in.readFully(body);
+
+            if ((header & 1) == 0) {
+                data = body;
+                limit = length;
+            } else {
+                limit = inflate(body);
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    private int readHeader() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1)
+                return -1;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        return value;
+    }
+
+    private int inflate(byte[] body) throws IOException {
+        inflater.reset();
+        inflater.setInput(body);
+
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == data.length)
+                    data = Arrays.copyOf(data, Math.max(1024, data.length * 2));
+
+                int got = inflater.inflate(data, n, data.length - n);
+                if (got == 0 && inflater.needsInput())
+                    throw new IOException("Truncated packet");
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt packet", e);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
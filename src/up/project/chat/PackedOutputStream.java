@@ -0,0 +1,99 @@
+package up.project.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+// Client side of /compress: each line or frame goes out as a packet of its
+//  own (see Frame), deflated when that makes it smaller; the writer ends one
+//  with endPacket(). A packet never holds more than maxPacket bytes, a
+//  longer line is cut over several and the server joins them back up
+final class PackedOutputStream extends FilterOutputStream {
+    // Shorter writes are not worth deflating
+    static private final int MIN_DEFLATE = 64;
+
+    private final int maxPacket;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] deflated = new byte[1024];
+
+    // out should be buffered, packets are written to it in small pieces;
+    //  maxPacket must not be above what the server takes, chat.maxLine + 16
+    PackedOutputStream(OutputStream out, int maxPacket) {
+        super(out);
+        this.maxPacket = maxPacket;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pending.write(b);
+        if (pending.size() == maxPacket)
+            endPacket();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, maxPacket - pending.size());
+            pending.write(b, off, n);
+            off += n;
+            len -= n;
+            if (pending.size() == maxPacket)
+                endPacket();
+        }
+    }
+
+    // What was written since the last packet becomes one, not sent yet
+    void endPacket() throws IOException {
+        if (pending.size() > 0) {
+            byte[] plain = pending.toByteArray();
+            pending.reset();
+            writePacket(plain);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        endPacket();
+        out.flush();
+    }
+
+    private void writePacket(byte[] plain) throws IOException {
+        int len = plain.length;
+
+        if (len >= MIN_DEFLATE) {
+            if (deflated.length < len)
+                deflated = new byte[len];
+
+            deflater.reset();
+            deflater.setInput(plain);
+            deflater.finish();
+
+            int n = deflater.deflate(deflated, 0, len - 1);
+            if (deflater.finished()) {
+                writeVarint(n << 1 | 1);
+                out.write(deflated, 0, n);
+                return;
+            }
+        }
+
+        writeVarint(len << 1);
+        out.write(plain);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        super.close();
+    }
+}
@@ -0,0 +1,39 @@
+package up.project.chat;
+
+// One configured rate limit: lines per second, the burst allowed on top,
+//  and what happens to a line over the limit
+//  read from chat.limit.<scope>.rate/.burst/.action, off when the rate is 0
+final class RateLimit {
+    enum Action {
+        // Discard the line
+        DROP,
+
+        // Stop reading from the client until the line is allowed
+        DELAY,
+
+        // Close the connection
+        DISCONNECT
+    }
+
+    final long rate;
+    final long burst;
+    final Action action;
+
+    private RateLimit(long rate, long burst, Action action) {
+        this.rate = rate;
+        this.burst = burst;
+        this.action = action;
+    }
+
+    // null when the scope has no limit
+    static RateLimit read(String scope) {
+        String prefix = "chat.limit." + scope + ".";
+        long rate = Long.getLong(prefix + "rate", 0);
+        if (rate <= 0)
+            return null;
+
+        return new RateLimit(rate,
+                Math.max(1, Long.getLong(prefix + "burst", rate)),
+                Action.valueOf(System.getProperty(prefix + "action", "DELAY").toUpperCase()));
+    }
+}
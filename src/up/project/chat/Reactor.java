@@ -0,0 +1,451 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One selector loop owning a share of the connections
+//  everything touching a connection's socket, key or outbound queue runs on
+//  the owning reactor; other threads hand work over through the mailbox
+class Reactor extends Thread implements Transport {
+    // Most bytes taken from a socket per read
+    static private final int READ_BYTES = 16384;
+
+    private final Selector selector;
+    private final ChatEngine engine;
+
+    // Tasks posted from other threads, run at the top of every round
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // Clients to close at the end of the current select round
+    private final List<ClientInfo> pendingClose = new ArrayList<>();
+
+    // Connection timeouts and other delayed work, run on this thread
+    private final TimingWheel wheel = new TimingWheel(ServerConfig.TIMER_TICK_MILLIS);
+
+    // With FLUSH_COALESCE, clients holding frames back and when they go out
+    private final List<ClientInfo> pendingFlush = new ArrayList<>();
+    private long flushDeadline;
+
+    Reactor(int index, ChatEngine engine) throws IOException {
+        super("reactor-" + index);
+        this.selector = Selector.open();
+        this.engine = engine;
+    }
+
+    // Run the task on this reactor, waking up its selector if needed
+    public void execute(Runnable task) {
+        mailbox.add(task);
+
+        if (Thread.currentThread() != this && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Hand over a freshly accepted connection
+    public void register(SocketChannel sc) {
+        execute(() -> {
+            // Add to the client table and register it with the selector, for reading
+            ClientInfo cc = engine.newClient(sc, this);
+            try {
+                cc.setKey(sc.register(selector, SelectionKey.OP_READ, cc));
+            } catch (IOException ie) {
+                Log.warn("Error registering {}: {}", sc, ie);
+
+                // Never served, but closed and taken out of the tables like any other
+                Metrics.closed.increment();
+                try {
+                    sc.close();
+                } catch (IOException e) {
+                    Log.warn("Error closing socket {}: {}", sc, e);
+                }
+                engine.deleteClient(cc);
+                return;
+            }
+            watch(cc, engine.checkTimeouts(cc, TimingWheel.now()));
+        });
+    }
+
+    @Override
+    public void send(ClientInfo cc, Frame frame) {
+        if (Thread.currentThread() == this) {
+            enqueue(cc, frame);
+        } else {
+            execute(() -> enqueue(cc, frame));
+        }
+    }
+
+    @Override
+    public void send(ClientInfo[] ccs, int from, int to, Frame frame) {
+        // One mailbox task for the lot
+        if (Thread.currentThread() == this) {
+            enqueue(ccs, from, to, frame);
+        } else {
+            execute(() -> enqueue(ccs, from, to, frame));
+        }
+    }
+
+    @Override
+    public void send(ClientInfo cc, FileRegion region) {
+        if (Thread.currentThread() == this) {
+            enqueue(cc, region);
+        } else {
+            execute(() -> enqueue(cc, region));
+        }
+    }
+
+    @Override
+    public void resume(ClientInfo cc, Runnable task) {
+        execute(() -> {
+            task.run();
+
+            SelectionKey key = cc.getKey();
+            if (cc.isClosing() || !key.isValid()) return;
+
+            // Run the commands that arrived while it waited, then read again
+            engine.processCommands(cc);
+            if (key.isValid() && !cc.isSuspended() && !cc.isClosing() && !cc.isReadPaused())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        });
+    }
+
+    @Override
+    public void interrupt(ClientInfo cc, Runnable task) {
+        // The selector never blocks on one client, the task just waits its turn
+        execute(task);
+    }
+
+    @Override
+    public void schedule(ClientInfo cc, Runnable task, long delayMillis) {
+        wheel.schedule(task, delayMillis);
+    }
+
+    // Check cc's timeouts again in delay millis, no more checks when delay is -1
+    private void watch(ClientInfo cc, long delay) {
+        if (delay < 0) {
+            cc.setTimer(null);
+            return;
+        }
+
+        cc.setTimer(wheel.schedule(() -> watch(cc, engine.checkTimeouts(cc, TimingWheel.now())), delay));
+    }
+
+    @Override
+    public void close(ClientInfo cc) {
+        if (Thread.currentThread() == this) {
+            closeClient(cc);
+        } else {
+            execute(() -> closeClient(cc));
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                select();
+                wakeupPending.set(false);
+                long started = System.nanoTime();
+
+                Runnable task;
+                while ((task = mailbox.poll()) != null) {
+                    task.run();
+                }
+
+                Set<SelectionKey> keys = selector.selectedKeys();
+                for (SelectionKey key : keys) {
+
+                    // The key may have been cancelled while handling a previous one
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    ClientInfo cc = (ClientInfo) key.attachment();
+
+                    if (key.isReadable() && !cc.isClosing()) {
+
+                        try {
+
+                            // It's incoming data on a connection -- process it
+                            boolean ok = processInput(cc);
+
+                            // If the connection is dead, remove it from the selector
+                            // and close it
+                            if (!ok) {
+                                closeClient(cc);
+                            }
+
+                        } catch (IOException ie) {
+
+                            // On exception, remove this channel from the selector
+                            closeClient(cc);
+                        }
+                    }
+
+                    // The socket has room again -- send what is queued for it
+                    if (key.isValid() && key.isWritable()) {
+                        flushClient(cc);
+                    }
+                }
+
+                // We remove the selected keys, because we've dealt with them.
+                keys.clear();
+
+                if (!pendingFlush.isEmpty() && System.nanoTime() - flushDeadline >= 0) {
+                    flushPending();
+                }
+
+                if (!wheel.isEmpty()) {
+                    wheel.advance(started / 1_000_000);
+                }
+
+                // Clients that overflowed or failed while we were sending to them
+                //  are only closed now, so no room is modified while being iterated;
+                //  the LEFT of one may overflow the next, so take them one by one
+                while (!pendingClose.isEmpty()) {
+                    closeClient(pendingClose.remove(pendingClose.size() - 1));
+                }
+
+                Metrics.loopMicros.record((System.nanoTime() - started) / 1000);
+
+            } catch (IOException ie) {
+                Log.error("{}: selector failed", getName(), ie);
+            }
+        }
+    }
+
+    // Wait for the next event, but no longer than held-back frames may wait
+    //  or than it takes the timers to reach their next tick
+    private void select() throws IOException {
+        long wait = Long.MAX_VALUE;
+        if (!pendingFlush.isEmpty())
+            wait = (flushDeadline - System.nanoTime() + 999_999) / 1_000_000;
+        if (!wheel.isEmpty())
+            wait = Math.min(wait, wheel.millisToNextTick(TimingWheel.now()));
+
+        if (wait == Long.MAX_VALUE) {
+            selector.select();
+        } else if (wait <= 0) {
+            selector.selectNow();
+        } else {
+            selector.select(wait);
+        }
+    }
+
+    // One gathering write per client for everything queued this round
+    private void flushPending() {
+        long now = System.nanoTime();
+
+        for (ClientInfo cc : pendingFlush) {
+            Metrics.flushDelayMicros.record((now - cc.getQueuedSince()) / 1000);
+            cc.setQueuedSince(0);
+
+            if (cc.getKey().isValid())
+                flushClient(cc);
+        }
+        pendingFlush.clear();
+    }
+
+    private boolean processInput(ClientInfo cc) throws IOException {
+        // Read the message to a pooled buffer, held only until the framer has the bytes
+        ByteBuffer buffer = BufferPool.acquire(READ_BYTES);
+        try {
+            int read = cc.getChannel().read(buffer);
+            buffer.flip();
+
+            // If no data, close the connection
+            if (read == -1) {
+                return false;
+            }
+            Metrics.bytesIn.add(read);
+            cc.setLastInput(TimingWheel.now());
+
+            // Pass the bytes to the client's framer, lines are decoded one by one
+            cc.getFramer().feed(buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        engine.processCommands(cc);
+
+        // Waiting on another node, stop reading until the answer is in
+        SelectionKey key = cc.getKey();
+        if (cc.isSuspended() && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        return true;
+    }
+
+    @Override
+    public void closeAfterFlush(ClientInfo cc) {
+        if (cc.getOutbound().isEmpty()) {
+            closeClient(cc);
+            return;
+        }
+
+        cc.setClosing(true);
+        cc.getKey().interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void closeClient(ClientInfo cc) {
+        SelectionKey key = cc.getKey();
+        if (!key.isValid()) return;
+
+        key.cancel();
+        cc.getOutbound().clear();
+
+        if (cc.getTimer() != null) {
+            cc.getTimer().cancel();
+            cc.setTimer(null);
+        }
+
+        Metrics.closed.increment();
+
+        Socket s = null;
+        try {
+            s = cc.getChannel().socket();
+            s.close();
+
+        } catch (IOException ie) {
+            Log.warn("Error closing socket {}: {}", s, ie);
+        }
+
+        // Remove client from tables
+        engine.deleteClient(cc);
+    }
+
+    private void scheduleClose(ClientInfo cc) {
+        if (pendingClose.contains(cc)) return;
+
+        cc.setClosing(true);
+        cc.getOutbound().clear();
+        pendingClose.add(cc);
+    }
+
+    // frame is shared with the other recipients, only views of its bytes are queued
+    private void enqueue(ClientInfo cc, Frame frame) {
+        // Nothing more goes to a client that is leaving or being dropped
+        if (cc.isClosing() || !cc.getKey().isValid()) return;
+
+        OutboundQueue out = cc.getOutbound();
+        boolean idle = out.isEmpty();
+        frame.queueFor(cc);
+        Metrics.delivered.increment();
+        queued(cc, idle);
+    }
+
+    private void enqueue(ClientInfo[] ccs, int from, int to, Frame frame) {
+        for (int i = from; i < to; i++)
+            enqueue(ccs[i], frame);
+    }
+
+    private void enqueue(ClientInfo cc, FileRegion region) {
+        if (cc.isClosing() || !cc.getKey().isValid()) {
+            region.release();
+            return;
+        }
+
+        OutboundQueue out = cc.getOutbound();
+        boolean idle = out.isEmpty();
+        Frame.queueHistory(cc, region);
+        queued(cc, idle);
+    }
+
+    private void queued(ClientInfo cc, boolean idle) {
+        OutboundQueue out = cc.getOutbound();
+
+        // Write right away if nothing is pending, otherwise keep the order
+        //  and wait for OP_WRITE; when coalescing, wait for the round's flush
+        if (idle && ServerConfig.FLUSH_COALESCE) {
+            hold(cc);
+        } else if (idle) {
+            flushClient(cc);
+            if (cc.isClosing()) return;
+        }
+
+        if (out.bytes() > ServerConfig.QUEUE_HIGH_WATER) {
+            overflow(cc);
+        }
+    }
+
+    private void hold(ClientInfo cc) {
+        if (cc.getQueuedSince() != 0) return;
+
+        long now = System.nanoTime();
+        if (pendingFlush.isEmpty())
+            flushDeadline = now + ServerConfig.FLUSH_WINDOW_MICROS * 1000;
+
+        cc.setQueuedSince(now);
+        pendingFlush.add(cc);
+    }
+
+    private void flushClient(ClientInfo cc) {
+        SelectionKey key = cc.getKey();
+        OutboundQueue out = cc.getOutbound();
+
+        boolean done;
+        try {
+            done = out.flush(cc.getChannel());
+
+        } catch (IOException e) {
+            Log.debug("Error sending to {}: {}", cc.getChannel(), e);
+            scheduleClose(cc);
+            return;
+        }
+
+        if (!done) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // Left after /bye, BYE is out now
+        if (cc.isClosing()) {
+            closeClient(cc);
+            return;
+        }
+
+        int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+        if (cc.isReadPaused() && out.bytes() < ServerConfig.QUEUE_LOW_WATER) {
+            cc.setReadPaused(false);
+            if (!cc.isSuspended())
+                ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    private void overflow(ClientInfo cc) {
+        OutboundQueue out = cc.getOutbound();
+
+        switch (ServerConfig.OVERFLOW_POLICY) {
+            case DROP_OLDEST:
+                while (out.bytes() > ServerConfig.QUEUE_HIGH_WATER && out.dropOldest()) ;
+                break;
+
+            case DISCONNECT:
+                scheduleClose(cc);
+                break;
+
+            case PAUSE_READ:
+                if (out.bytes() > ServerConfig.QUEUE_HARD_LIMIT) {
+                    scheduleClose(cc);
+                    break;
+                }
+
+                SelectionKey key = cc.getKey();
+                cc.setReadPaused(true);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                break;
+        }
+    }
+}
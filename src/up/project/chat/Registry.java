@@ -0,0 +1,105 @@
+package up.project.chat;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Connections, nicks and rooms, safe to use from any number of threads
+//  lookups never lock; nick and room changes are single atomic operations.
+//  A nick's holder and a room are kept on their Symbol, so once a name is
+//  interned finding them takes no hashing. Each holder and each room takes a
+//  reference to its symbol, callers only need one while they make the change
+class Registry {
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final ConcurrentHashMap<Integer, ClientInfo> clients = new ConcurrentHashMap<>();
+
+    // Nicks held here, for telling the other nodes
+    private final Set<Symbol> nicks = ConcurrentHashMap.newKeySet();
+
+    // A fresh connection id, never reused while the server runs
+    int newId() {
+        return nextId.incrementAndGet();
+    }
+
+    void addClient(ClientInfo cc) {
+        clients.put(cc.getId(), cc);
+    }
+
+    // Returns false if the client was already removed
+    boolean removeClient(ClientInfo cc) {
+        return clients.remove(cc.getId(), cc);
+    }
+
+    // Live view of the connected clients
+    Collection<ClientInfo> clients() {
+        return clients.values();
+    }
+
+    int clientCount() {
+        return clients.size();
+    }
+
+    // Returns false once the client has been removed
+    boolean hasClient(ClientInfo cc) {
+        return clients.get(cc.getId()) == cc;
+    }
+
+    // Live view of the nicks in use
+    Set<Symbol> nicks() {
+        return nicks;
+    }
+
+    ClientInfo getByNick(Symbol nick) {
+        return nick == null ? null : nick.holder();
+    }
+
+    // Returns the current owner of the nick, which is cc if the claim worked
+    ClientInfo claimNick(Symbol nick, ClientInfo cc) {
+        ClientInfo owner = nick.claim(cc);
+        if (owner == cc && nicks.add(nick))
+            SymbolTable.retain(nick);
+        return owner;
+    }
+
+    // Only cc releases its nick, so nobody can take it between the two steps
+    void releaseNick(Symbol nick, ClientInfo cc) {
+        if (nick != null && nick.holder() == cc) {
+            nicks.remove(nick);
+            nick.release(cc);
+            SymbolTable.release(nick);
+        }
+    }
+
+    Room getRoom(Symbol name) {
+        return name == null ? null : name.room();
+    }
+
+    // Add cc to the room, creating it if needed
+    Room join(Symbol name, ClientInfo cc) {
+        while (true) {
+            Room room = name.room();
+            if (room == null) {
+                room = new Room(name);
+                if (!name.swapRoom(null, room)) continue;
+                SymbolTable.retain(name);
+            }
+            if (room.add(cc)) return room;
+
+            // Lost a race with the last member leaving, retry with a new room
+            if (name.swapRoom(room, null))
+                SymbolTable.release(name);
+        }
+    }
+
+    // Returns false if the room is now empty (and gone)
+    boolean leave(Room room, ClientInfo cc) {
+        if (room.remove(cc)) {
+            if (room.getSymbol().swapRoom(room, null))
+                SymbolTable.release(room.getSymbol());
+            return false;
+        }
+        return true;
+    }
+}
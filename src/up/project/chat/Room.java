@@ -0,0 +1,132 @@
+package up.project.chat;
+
+import java.util.Arrays;
+
+// A chat room and its members
+//  membership is a copy-on-write array: joins and leaves copy it under the
+//  room's lock, broadcasts just read the current array without locking.
+//  Once a room reaches chat.fanout.shardMin members it also keeps them split
+//  by fan-out lane, see Fanout; it stays split after that, so the frames of
+//  a member never move from the sender's thread to a lane and overtake
+class Room {
+    static private final ClientInfo[] EMPTY = new ClientInfo[0];
+
+    private final Symbol name;
+    private volatile ClientInfo[] members = EMPTY;
+
+    // Members by lane, copy-on-write per shard; null while the room is small
+    private volatile ClientInfo[][] shards;
+
+    // Set when the last member leaves, a closed room is dropped from the registry
+    private boolean closed;
+
+    // Messages to the room, null when rooms are not limited
+    private final TokenBucket limiter;
+
+    Room(Symbol name) {
+        this.name = name;
+        this.limiter = ServerConfig.ROOM_LIMIT == null ? null : new TokenBucket(ServerConfig.ROOM_LIMIT);
+    }
+
+    public String getName() {
+        return name.name;
+    }
+
+    Symbol getSymbol() {
+        return name;
+    }
+
+    TokenBucket getLimiter() {
+        return limiter;
+    }
+
+    // Snapshot of the members, never modified once returned
+    public ClientInfo[] members() {
+        return members;
+    }
+
+    // Snapshot of the shards, null if the room is not sharded
+    ClientInfo[][] shards() {
+        return shards;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    // Returns false if the room was closed in the meantime
+    synchronized boolean add(ClientInfo cc) {
+        if (closed) return false;
+
+        ClientInfo[] current = members;
+        ClientInfo[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = cc;
+        members = next;
+
+        if (shards != null) {
+            ClientInfo[][] split = shards.clone();
+            int lane = Fanout.lane(cc);
+            split[lane] = insert(split[lane], cc);
+            shards = split;
+        } else if (ServerConfig.FANOUT_SHARD_MIN > 0 && next.length >= ServerConfig.FANOUT_SHARD_MIN) {
+            ClientInfo[][] split = new ClientInfo[ServerConfig.FANOUT_THREADS][];
+            Arrays.fill(split, EMPTY);
+            for (ClientInfo member : next)
+                split[Fanout.lane(member)] = insert(split[Fanout.lane(member)], member);
+            shards = split;
+        }
+        return true;
+    }
+
+    // Returns true if cc was the last member, the room is closed then
+    synchronized boolean remove(ClientInfo cc) {
+        ClientInfo[] current = members;
+
+        int i = 0;
+        while (i < current.length && current[i] != cc) i++;
+        if (i == current.length) return false;
+
+        ClientInfo[] next = new ClientInfo[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        members = next;
+
+        if (shards != null) {
+            ClientInfo[][] split = shards.clone();
+            int lane = Fanout.lane(cc);
+            split[lane] = without(split[lane], cc);
+            shards = split;
+        }
+
+        if (next.length == 0) closed = true;
+        return closed;
+    }
+
+    // Next to the members on the same transport, so a lane can hand them over together
+    private static ClientInfo[] insert(ClientInfo[] shard, ClientInfo cc) {
+        int at = shard.length;
+        for (int i = shard.length - 1; i >= 0; i--) {
+            if (shard[i].getTransport() == cc.getTransport()) {
+                at = i + 1;
+                break;
+            }
+        }
+
+        ClientInfo[] next = new ClientInfo[shard.length + 1];
+        System.arraycopy(shard, 0, next, 0, at);
+        next[at] = cc;
+        System.arraycopy(shard, at, next, at + 1, shard.length - at);
+        return next;
+    }
+
+    private static ClientInfo[] without(ClientInfo[] shard, ClientInfo cc) {
+        int i = 0;
+        while (i < shard.length && shard[i] != cc) i++;
+        if (i == shard.length) return shard;
+
+        ClientInfo[] next = new ClientInfo[shard.length - 1];
+        System.arraycopy(shard, 0, next, 0, i);
+        System.arraycopy(shard, i + 1, next, i, shard.length - i - 1);
+        return next;
+    }
+}
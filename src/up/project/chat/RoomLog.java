@@ -0,0 +1,335 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// Message history of one room, an append-only series of segments on disk
+//  a segment is a data file with the MESSAGE frames back to back plus an index
+//  file with one (time, offset, length) entry per message, both memory-mapped.
+//  Replay walks the index and hands out file regions, the messages themselves
+//  never pass through the heap; each region pins its segment, which retention
+//  only closes and deletes once no region needs it. All methods lock the log,
+//  the engine also holds that lock to order a room's messages against joins.
+//  Files are created, cut down, closed and deleted on the history thread, io;
+//  appends only find a full segment's successor there when they outrun it
+final class RoomLog {
+    // Index entry: time (long), offset (int), length (int)
+    static private final int ENTRY = 16;
+
+    static private final int DATA_BYTES = ServerConfig.HISTORY_SEGMENT_BYTES;
+    // Index mapped at first, doubled whenever it fills up
+    static private final int INDEX_BYTES = Math.max(ENTRY, Math.min(64 << 10, DATA_BYTES / 2 / ENTRY * ENTRY));
+
+    private final Path dir;
+    private final Executor io;
+
+    // Oldest first, the last one is written to
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    // The next segment, made on io once the active one is half full
+    private Segment spare;
+    private boolean preparing;
+    // Number of the next segment made
+    private long next;
+    private boolean closed;
+
+    // Runs on io
+    RoomLog(Path dir, Executor io) throws IOException {
+        this.dir = dir;
+        this.io = io;
+        Files.createDirectories(dir);
+
+        // Pick up the segments of earlier runs
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int i = 0; i < numbers.size(); i++)
+            segments.add(new Segment(dir, numbers.get(i), i == numbers.size() - 1));
+        if (!numbers.isEmpty())
+            next = numbers.get(numbers.size() - 1) + 1;
+
+        retain();
+    }
+
+    synchronized void append(ByteBuffer frame) throws IOException {
+        int len = frame.remaining();
+        if (len > DATA_BYTES || closed) return;
+
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || !active.fits(len)) {
+            active = roll(active);
+        }
+
+        active.append(System.currentTimeMillis(), frame);
+
+        if (spare == null && !preparing && active.end > DATA_BYTES / 2) {
+            preparing = true;
+            long number = next++;
+            io.execute(() -> prepare(number));
+        }
+    }
+
+    // The last max messages not older than since (epoch millis), oldest first
+    synchronized List<FileRegion> replay(int max, long since) {
+        ArrayDeque<FileRegion> regions = new ArrayDeque<>();
+
+        int left = max;
+        for (int s = segments.size() - 1; s >= 0 && left > 0; s--) {
+            Segment segment = segments.get(s);
+
+            int first = segment.count;
+            while (first > 0 && left > 0 && segment.time(first - 1) >= since) {
+                first--;
+                left--;
+            }
+            if (first < segment.count) {
+                segment.pins++;
+                regions.addFirst(new FileRegion(segment.data, segment.offset(first), segment.end, () -> unpin(segment)));
+            }
+
+            // Stopped on an old message, everything before is older still
+            if (first > 0)
+                break;
+        }
+
+        return new ArrayList<>(regions);
+    }
+
+    // Let go of every file, on io once nobody appends or replays any more;
+    //  the segments stay on disk, those still pinned close when unpinned
+    void close() {
+        Segment active;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+
+            active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active != null)
+                active.dataMap = null;
+        }
+
+        // Alone on the segment from here, appends are over
+        if (active != null)
+            trim(active);
+
+        synchronized (this) {
+            for (Segment segment : segments)
+                retire(segment, false);
+            segments.clear();
+
+            if (spare != null)
+                retire(spare, true);
+            spare = null;
+        }
+    }
+
+    // A region of segment is out or dropped
+    private synchronized void unpin(Segment segment) {
+        if (--segment.pins == 0 && segment.retired)
+            io.execute(() -> release(segment));
+    }
+
+    private void prepare(long number) {
+        Segment made;
+        try {
+            made = new Segment(dir, number, true);
+        } catch (IOException e) {
+            Log.warn("Cannot create history segment in {}: {}", dir, e);
+            synchronized (this) {
+                preparing = false;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            preparing = false;
+
+            // Closed meanwhile, or the appends could not wait and made a later one
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (closed || (active != null && active.number > number)) {
+                made.discard = true;
+                release(made);
+                return;
+            }
+            spare = made;
+        }
+    }
+
+    private Segment roll(Segment active) throws IOException {
+        Segment made = spare;
+        spare = null;
+        if (made == null)
+            made = new Segment(dir, next++, true);
+
+        if (active != null) {
+            active.dataMap = null;
+            io.execute(() -> trim(active));
+        }
+
+        segments.add(made);
+        retain();
+        return made;
+    }
+
+    // Drop segments past the count limit or past the age limit, never the one being written
+    private void retain() {
+        long oldest = System.currentTimeMillis() - ServerConfig.HISTORY_RETAIN_SECONDS * 1000;
+
+        while (segments.size() > 1
+                && (segments.size() > ServerConfig.HISTORY_SEGMENTS || segments.get(0).lastTime() < oldest)) {
+            retire(segments.remove(0), true);
+        }
+    }
+
+    // segment is out of the log, it goes once no region pins it
+    private void retire(Segment segment, boolean delete) {
+        segment.retired = true;
+        segment.discard = delete;
+        if (segment.pins == 0)
+            io.execute(() -> release(segment));
+    }
+
+    // A sealed segment's files cut down to what they hold, on io
+    private void trim(Segment segment) {
+        MappedByteBuffer index;
+        try {
+            index = segment.trim();
+        } catch (IOException e) {
+            Log.warn("Cannot trim history segment {}: {}", segment.dataPath, e);
+            return;
+        }
+
+        synchronized (this) {
+            segment.index = index;
+        }
+    }
+
+    private static void release(Segment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            Log.warn("Cannot close history segment {}: {}", segment.dataPath, e);
+        }
+    }
+
+    static private final class Segment {
+        // Numbered in the order they are made, also the file name
+        final long number;
+        final Path dataPath, indexPath;
+        final FileChannel data;
+        // Open while the index may still grow
+        FileChannel indexFile;
+
+        // Only mapped while the segment is written to
+        MappedByteBuffer dataMap;
+        MappedByteBuffer index;
+
+        int count, end;
+
+        // Regions handed out and not sent yet; a retired segment is out of
+        //  the log and is closed as soon as the last of them is done, its
+        //  files deleted too if discarded
+        int pins;
+        boolean retired, discard;
+
+        Segment(Path dir, long number, boolean writable) throws IOException {
+            this.number = number;
+            this.dataPath = dir.resolve(String.format("%019d.log", number));
+            this.indexPath = dir.resolve(String.format("%019d.idx", number));
+
+            if (writable) {
+                data = FileChannel.open(dataPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                dataMap = data.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(DATA_BYTES, data.size()));
+                indexFile = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INDEX_BYTES, indexFile.size()));
+            } else {
+                data = FileChannel.open(dataPath, StandardOpenOption.READ);
+                // The mapping outlives the channel
+                try (FileChannel ic = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    index = ic.map(FileChannel.MapMode.READ_ONLY, 0, ic.size());
+                }
+            }
+
+            // Entries are written length last, the first zero length is the end
+            int capacity = index.capacity() / ENTRY;
+            while (count < capacity && index.getInt(count * ENTRY + 12) > 0) count++;
+            if (count > 0)
+                end = offset(count - 1) + index.getInt((count - 1) * ENTRY + 12);
+        }
+
+        boolean fits(int len) {
+            return dataMap != null && end + len <= dataMap.capacity();
+        }
+
+        void append(long time, ByteBuffer frame) throws IOException {
+            int at = count * ENTRY;
+            if (at + ENTRY > index.capacity())
+                index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0, 2L * index.capacity());
+
+            int len = frame.remaining();
+            dataMap.position(end);
+            dataMap.put(frame.duplicate());
+
+            index.putLong(at, time);
+            index.putInt(at + 8, end);
+            index.putInt(at + 12, len);
+
+            end += len;
+            count++;
+        }
+
+        long time(int entry) {
+            return index.getLong(entry * ENTRY);
+        }
+
+        int offset(int entry) {
+            return index.getInt(entry * ENTRY + 8);
+        }
+
+        long lastTime() {
+            return count == 0 ? Long.MAX_VALUE : time(count - 1);
+        }
+
+        // No more appends: the files lose their unused tail and the index
+        //  is mapped again at its real size; returns the new mapping
+        MappedByteBuffer trim() throws IOException {
+            long entries = (long) count * ENTRY;
+            data.truncate(end);
+            indexFile.truncate(entries);
+            MappedByteBuffer trimmed = indexFile.map(FileChannel.MapMode.READ_ONLY, 0, entries);
+            indexFile.close();
+            indexFile = null;
+            return trimmed;
+        }
+
+        void close() throws IOException {
+            data.close();
+            if (indexFile != null)
+                indexFile.close();
+            if (discard) {
+                Files.deleteIfExists(dataPath);
+                Files.deleteIfExists(indexPath);
+            }
+        }
+    }
+}
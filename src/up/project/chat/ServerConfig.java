@@ -0,0 +1,121 @@
+package up.project.chat;
+
+// Server tunables, read once from system properties (-Dchat.xxx=value)
+final class ServerConfig {
+    // Selector threads sharing the connections
+    static final int REACTORS = Integer.getInteger("chat.reactors", Runtime.getRuntime().availableProcessors());
+
+    // Longest command line accepted, longer ones are answered with ERROR and skipped
+    static final int MAX_LINE = Integer.getInteger("chat.maxLine", 65536);
+
+    // Queued outbound bytes per client before the overflow policy is applied
+    static final int QUEUE_HIGH_WATER = Integer.getInteger("chat.queue.highWater", 1 << 20);
+
+    // A paused client is resumed once its queue drains below this
+    static final int QUEUE_LOW_WATER = Integer.getInteger("chat.queue.lowWater", QUEUE_HIGH_WATER / 2);
+
+    // Hard cap for PAUSE_READ, past this the client is dropped anyway
+    static final int QUEUE_HARD_LIMIT = Integer.getInteger("chat.queue.hardLimit", QUEUE_HIGH_WATER * 4);
+
+    static final OverflowPolicy OVERFLOW_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("chat.queue.policy", "DROP_OLDEST").toUpperCase());
+
+    // Off-heap memory for pooled read buffers, past it reads use heap buffers
+    static final long POOL_MAX_BYTES = Long.getLong("chat.pool.maxBytes", 64L << 20);
+
+    // Hold frames back and write each client's batch at once: at the end of
+    //  the selector round, or FLUSH_WINDOW_MICROS after the first one
+    static final boolean FLUSH_COALESCE = Boolean.getBoolean("chat.flush.coalesce");
+
+    // How long a coalesced frame may wait for company (rounded up to whole
+    //  milliseconds by the selector), 0 to flush at the end of every round
+    static final long FLUSH_WINDOW_MICROS = Long.getLong("chat.flush.windowMicros", 0);
+
+    // Rooms reaching this many members are delivered by the fan-out threads,
+    //  in shards, instead of by the sender's thread; 0 to never shard
+    static final int FANOUT_SHARD_MIN = Integer.getInteger("chat.fanout.shardMin", 2048);
+
+    // Fan-out threads, each delivers one shard of every large room
+    static final int FANOUT_THREADS = Math.max(1, Integer.getInteger("chat.fanout.threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2)));
+
+    // On shutdown, how long clients get to receive what is queued for them and BYE
+    static final long SHUTDOWN_DRAIN_MILLIS = Long.getLong("chat.shutdown.drainSeconds", 10) * 1000;
+
+    // Sessions are saved here on shutdown and offered back on the next start, unset for none
+    static final String SNAPSHOT_FILE = System.getProperty("chat.snapshot.file");
+
+    // How long a saved session waits for its client to /resume it
+    static final long SNAPSHOT_GRACE_MILLIS = Long.getLong("chat.snapshot.graceSeconds", 120) * 1000;
+
+    // Connections without a nick after this long are closed, 0 to never close them
+    static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("chat.timeout.handshakeSeconds", 30) * 1000;
+
+    // Connections that sent nothing for this long are closed, 0 to keep them
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.timeout.idleSeconds", 0) * 1000;
+
+    // Quiet clients get a PING this often, so live ones can answer and dead
+    //  sockets fail their write; 0 for no pings
+    static final long PING_INTERVAL_MILLIS = Long.getLong("chat.timeout.pingSeconds", 0) * 1000;
+
+    // Resolution of the timers
+    static final long TIMER_TICK_MILLIS = Long.getLong("chat.timer.tickMillis", 100);
+
+    // Lines per second per connection, per nick and per room (room messages
+    //  only), see RateLimit; null when off
+    static final RateLimit CLIENT_LIMIT = RateLimit.read("client");
+    static final RateLimit NICK_LIMIT = RateLimit.read("nick");
+    static final RateLimit ROOM_LIMIT = RateLimit.read("room");
+
+    // Directory for the room history, history is off when not set
+    static final String HISTORY_DIR = System.getProperty("chat.history.dir");
+
+    // Size of one history segment file, a room rolls over to a new one when it is full
+    static final int HISTORY_SEGMENT_BYTES = Integer.getInteger("chat.history.segmentBytes", 16 << 20);
+
+    // Segments kept per room, the oldest is deleted past this
+    static final int HISTORY_SEGMENTS = Integer.getInteger("chat.history.segments", 8);
+
+    // Segments whose newest message is older than this are deleted
+    static final long HISTORY_RETAIN_SECONDS = Long.getLong("chat.history.retainSeconds", 7 * 24 * 3600);
+
+    // Messages replayed to a client joining a room
+    static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 50);
+
+    // Only replay messages younger than this, 0 for no age limit
+    static final long HISTORY_REPLAY_SECONDS = Long.getLong("chat.history.replaySeconds", 0);
+
+    // Directory for private messages to nicks nobody holds, they fail when not set
+    static final String OUTBOX_DIR = System.getProperty("chat.outbox.dir");
+
+    // Bytes kept per nick and for all nicks together, messages past these fail
+    static final int OUTBOX_MAX_BYTES = Integer.getInteger("chat.outbox.maxBytes", 32 << 10);
+    static final long OUTBOX_TOTAL_BYTES = Long.getLong("chat.outbox.totalBytes", 64L << 20);
+
+    // Cluster link addresses (host:port,...), one per node; no clustering when not set
+    static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes");
+
+    // Which entry of CLUSTER_NODES this server is
+    static final int CLUSTER_NODE = Integer.getInteger("chat.cluster.node", 0);
+
+    // Frames shorter than this go to /compress clients stored, not deflated
+    static final int COMPRESS_MIN = Integer.getInteger("chat.compress.min", 64);
+
+    // Deflate level for /compress clients, 1 (fast) to 9 (small)
+    static final int COMPRESS_LEVEL = Integer.getInteger("chat.compress.level", 6);
+
+    // ERROR, WARN, INFO or DEBUG
+    static final String LOG_LEVEL = System.getProperty("chat.log.level", "INFO");
+
+    // Log destination, standard output when not set
+    static final String LOG_FILE = System.getProperty("chat.log.file");
+
+    // Records buffered for the log writer before new ones are dropped
+    static final int LOG_BUFFER = Integer.getInteger("chat.log.buffer", 8192);
+
+    // Keep one in this many INFO and DEBUG records
+    static final int LOG_SAMPLE = Integer.getInteger("chat.log.sample", 1);
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,107 @@
+package up.project.chat;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Sessions carried over a restart
+//  on shutdown every client with a nick is given a random token (a RESUME
+//  frame just before its BYE) and the token, nick and room are saved here.
+//  The next start reads the file back, once: until the grace period is over
+//  the nicks are kept for their owners, who get nick and room back with
+//  "/resume <token>" instead of starting from scratch
+final class Snapshot {
+    static private final int MAGIC = 0x43485331;   // "CHS1"
+
+    static final class Session {
+        final long token;
+        final String nick;
+        final String room;      // null when not in a room
+
+        Session(long token, String nick, String room) {
+            this.token = token;
+            this.nick = nick;
+            this.room = room;
+        }
+    }
+
+    private Snapshot() {
+    }
+
+    // Written next to the target and moved over it, a crash leaves the old file or none
+    static void write(Path file, Collection<Session> sessions) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(sessions.size());
+            for (Session s : sessions) {
+                out.writeLong(s.token);
+                out.writeUTF(s.nick);
+                out.writeBoolean(s.room != null);
+                if (s.room != null)
+                    out.writeUTF(s.room);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The saved sessions, none if there is no file or it is past the grace
+    //  period; the file is deleted, a token is good for one restart only.
+    //  A file that cannot be read is moved aside to <file>.bad and the
+    //  server starts without sessions rather than not at all
+    static List<Session> read(Path file, long graceMillis) {
+        List<Session> sessions = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a session snapshot");
+
+            long savedAt = in.readLong();
+            int count = in.readInt();
+            if (System.currentTimeMillis() - savedAt > graceMillis)
+                count = 0;
+
+            for (int i = 0; i < count; i++) {
+                long token = in.readLong();
+                String nick = in.readUTF();
+                String room = in.readBoolean() ? in.readUTF() : null;
+                sessions.add(new Session(token, nick, room));
+            }
+        } catch (NoSuchFileException e) {
+            return sessions;
+        } catch (IOException e) {
+            Log.error("Cannot read sessions from {}, starting without them: {}", file, e);
+            setAside(file);
+            return new ArrayList<>();
+        }
+
+        try {
+            Files.delete(file);
+        } catch (IOException e) {
+            Log.warn("Cannot delete {}, its tokens may be offered again: {}", file, e);
+        }
+        return sessions;
+    }
+
+    // Kept as <file>.bad for a look, or at least out of the way of the next start
+    private static void setAside(Path file) {
+        Path bad = file.resolveSibling(file.getFileName() + ".bad");
+        try {
+            Files.move(file, bad, StandardCopyOption.REPLACE_EXISTING);
+            Log.warn("Moved {} to {}", file, bad);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e2) {
+                Log.warn("Cannot remove {}: {}", file, e2);
+            }
+        }
+    }
+}
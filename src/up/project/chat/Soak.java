@@ -0,0 +1,172 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Long run on loopback against a server in this JVM, looking for slow leaks
+//
+//   java up.project.chat.Soak [port=9100] [mode=nio] [hours=1] [window=60]
+//        [maxHeapMbPerHour=64] [maxFdGrowth=64] [maxP99Growth=2] [LoadGenerator options...]
+//
+// LoadGenerator runs for the whole time (clients=1000 by default) and every
+//  window seconds a sample is taken: heap after a full GC, open file
+//  descriptors, connections, deliveries per second and latency percentiles.
+//  The first window is warm-up. At the end the drift is printed: heap growth
+//  per hour (least squares over the samples), file descriptors left open once
+//  the load has stopped, and the p99 of the last quarter of the run against
+//  the first. Past any limit, or with connections still open, it exits with 1.
+//  Short runs are noisy, the limits are meant for an hour or more.
+public class Soak {
+    static private final List<String> OWN = Arrays.asList(
+            "port", "mode", "hours", "window", "maxHeapMbPerHour", "maxFdGrowth", "maxP99Growth");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq == -1) throw new IllegalArgumentException("expected key=value: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        int port = Integer.parseInt(options.getOrDefault("port", "9100"));
+        String mode = options.getOrDefault("mode", "nio");
+        double hours = Double.parseDouble(options.getOrDefault("hours", "1"));
+        int window = Integer.parseInt(options.getOrDefault("window", "60"));
+        double maxHeapSlope = Double.parseDouble(options.getOrDefault("maxHeapMbPerHour", "64"));
+        long maxFdGrowth = Long.parseLong(options.getOrDefault("maxFdGrowth", "64"));
+        double maxP99Growth = Double.parseDouble(options.getOrDefault("maxP99Growth", "2"));
+
+        // Everything else is for the load
+        Map<String, String> load = new HashMap<>(options);
+        load.keySet().removeAll(OWN);
+        load.putIfAbsent("clients", "1000");
+        load.put("quiet", "true");
+        load.put("duration", Long.toString(Math.max(1, (long) (hours * 3600))));
+
+        Thread server = new Thread(() -> ChatServer.main(new String[]{Integer.toString(port), mode}), "soak-server");
+        server.setDaemon(true);
+        server.start();
+        awaitServer(port);
+
+        long baseFds = openFds();
+        LoadGenerator generator = new LoadGenerator(port, load);
+        Thread loader = new Thread(() -> {
+            try {
+                generator.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "soak-load");
+        loader.start();
+
+        System.out.println(" minutes  heap MB    fds   conns  deliv/s     p50     p99   p99.9 (us)");
+        List<double[]> samples = new ArrayList<>();
+        long start = System.nanoTime(), last = start;
+
+        while (loader.isAlive()) {
+            loader.join(window * 1000L);
+
+            long now = System.nanoTime();
+            Histogram latency = generator.takeWindow();
+            double minutes = (now - start) / 60e9;
+            double heap = heapMb();
+            long fds = openFds();
+            double perSecond = latency.count() / Math.max(1e-9, (now - last) / 1e9);
+            last = now;
+
+            System.out.printf("%8.1f %8.1f %6d %7d %8.0f %7d %7d %7d%n", minutes, heap, fds, Metrics.open(),
+                    perSecond, latency.percentile(50), latency.percentile(99), latency.percentile(99.9));
+            samples.add(new double[]{minutes, heap, latency.percentile(99)});
+        }
+
+        // The load has stopped, every connection should go and take its descriptor along
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (Metrics.open() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(100);
+        long fdGrowth = openFds() - baseFds;
+
+        // The warm-up window does not count
+        List<double[]> steady = samples.size() > 1 ? samples.subList(1, samples.size()) : samples;
+        double heapSlope = slope(steady) * 60;
+        int quarter = Math.max(1, steady.size() / 4);
+        double p99First = median(steady.subList(0, quarter));
+        double p99Last = median(steady.subList(steady.size() - quarter, steady.size()));
+        double p99Growth = p99First > 0 ? p99Last / p99First : 1;
+
+        System.out.println();
+        System.out.printf("heap %+.1f MB/hour, %d fds left, %d connections left, p99 %.0f -> %.0f us (x%.2f)%n",
+                heapSlope, fdGrowth, Metrics.open(), p99First, p99Last, p99Growth);
+
+        List<String> failed = new ArrayList<>();
+        if (steady.size() >= 3 && heapSlope > maxHeapSlope)
+            failed.add("heap grows faster than " + maxHeapSlope + " MB/hour");
+        if (fdGrowth > maxFdGrowth)
+            failed.add("more than " + maxFdGrowth + " file descriptors left open");
+        if (Metrics.open() > 0)
+            failed.add("connections still open");
+        if (steady.size() >= 4 && p99Growth > maxP99Growth)
+            failed.add("p99 grew more than " + maxP99Growth + " times");
+
+        System.out.println(failed.isEmpty() ? "OK" : "FAILED: " + String.join(", ", failed));
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+
+    private static void awaitServer(int port) throws InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(address).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not come up on port " + port);
+    }
+
+    private static double heapMb() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1048576.0;
+    }
+
+    // -1 where the platform does not say
+    private static long openFds() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        return -1;
+    }
+
+    // Least squares slope of heap MB per minute
+    private static double slope(List<double[]> samples) {
+        int n = samples.size();
+        if (n < 2) return 0;
+
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (double[] s : samples) {
+            sx += s[0];
+            sy += s[1];
+            sxx += s[0] * s[0];
+            sxy += s[0] * s[1];
+        }
+        double d = n * sxx - sx * sx;
+        return d == 0 ? 0 : (n * sxy - sx * sy) / d;
+    }
+
+    private static double median(List<double[]> samples) {
+        double[] p99 = new double[samples.size()];
+        for (int i = 0; i < p99.length; i++) p99[i] = samples.get(i)[2];
+        Arrays.sort(p99);
+        return p99.length == 0 ? 0 : p99[p99.length / 2];
+    }
+}
@@ -0,0 +1,117 @@
+package up.project.chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// An interned name (nick or room) with its id and cached UTF-8 bytes
+final class Symbol {
+    static private final AtomicReferenceFieldUpdater<Symbol, ClientInfo> HOLDER =
+            AtomicReferenceFieldUpdater.newUpdater(Symbol.class, ClientInfo.class, "holder");
+    static private final AtomicReferenceFieldUpdater<Symbol, Room> ROOM =
+            AtomicReferenceFieldUpdater.newUpdater(Symbol.class, Room.class, "room");
+    static private final AtomicIntegerFieldUpdater<Symbol> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(Symbol.class, "refs");
+
+    final int id;
+    final String name;
+    final byte[] bytes;
+
+    // References taken through SymbolTable: the holder, the room, saved
+    //  sessions, outboxes, nicks held on other nodes and callers in between
+    private volatile int refs;
+
+    // The client here using this as its nick, see Registry
+    private volatile ClientInfo holder;
+
+    // The room of this name while it has members
+    private volatile Room room;
+
+    // SYMBOL frame telling a binary client what the id stands for, built on first use
+    private volatile ByteBuffer definition;
+
+    // Lines sent under this nick, kept here so reconnecting does not refill it
+    private volatile TokenBucket limiter;
+
+    Symbol(int id, String name) {
+        this.id = id;
+        this.name = name;
+        this.bytes = Frames.bytes(name);
+    }
+
+    void retain() {
+        REFS.incrementAndGet(this);
+    }
+
+    // Fails once the count is down to zero, the table then decides under its lock
+    boolean retainIfUsed() {
+        for (int r = refs; r > 0; r = refs) {
+            if (REFS.compareAndSet(this, r, r + 1))
+                return true;
+        }
+        return false;
+    }
+
+    // Returns true if that was the last reference
+    boolean releaseLast() {
+        return REFS.decrementAndGet(this) == 0;
+    }
+
+    boolean isUsed() {
+        return refs > 0;
+    }
+
+    // Nothing is lost by forgetting it: no references and a full nick bucket
+    boolean isIdle() {
+        TokenBucket b = limiter;
+        return refs == 0 && (b == null || b.isFull(System.nanoTime()));
+    }
+
+    ClientInfo holder() {
+        return holder;
+    }
+
+    // Returns the holder, which is cc if the nick was free or already cc's
+    ClientInfo claim(ClientInfo cc) {
+        return HOLDER.compareAndSet(this, null, cc) ? cc : holder;
+    }
+
+    void release(ClientInfo cc) {
+        HOLDER.compareAndSet(this, cc, null);
+    }
+
+    Room room() {
+        return room;
+    }
+
+    boolean swapRoom(Room expected, Room room) {
+        return ROOM.compareAndSet(this, expected, room);
+    }
+
+    // The nick's bucket for limit, made on first use
+    TokenBucket limiter(RateLimit limit) {
+        TokenBucket b = limiter;
+        if (b == null) {
+            synchronized (this) {
+                b = limiter;
+                if (b == null) {
+                    b = new TokenBucket(limit);
+                    limiter = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    ByteBuffer definition() {
+        ByteBuffer d = definition;
+        if (d == null) {
+            d = FrameBuilder.start()
+                    .putVarint(1 + Frame.varintSize(id) + bytes.length)
+                    .put(Frame.SYMBOL).putVarint(id).put(bytes)
+                    .seal();
+            definition = d;
+        }
+        return d;
+    }
+}
@@ -0,0 +1,121 @@
+package up.project.chat;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Nicks and room names interned to small ids, shared by the whole server
+//  a name is hashed once, when a command brings it in; from then on the
+//  server passes the Symbol around, with its cached bytes, the client
+//  holding the nick and the room of that name. Symbols are counted: intern
+//  takes a reference and release gives it back, the last one removes the
+//  symbol and frees its id for the next new name, so the table only holds
+//  names in use. Frames may still carry a removed symbol, a binary client
+//  then gets its SYMBOL again, see ClientInfo.learn
+final class SymbolTable {
+    static private final ConcurrentHashMap<String, Symbol> byName = new ConcurrentHashMap<>();
+
+    // Indexed by id, changed under the class lock; the volatile write publishes new entries
+    static private volatile Symbol[] byId = new Symbol[1024];
+    // Ids in use, new symbols take the lowest free one
+    static private final BitSet ids = new BitSet();
+
+    // Unused symbols whose nick bucket is still refilling, removed once it is full
+    //  so reconnecting does not refill it; oldest first
+    static private final ConcurrentLinkedQueue<Symbol> cooling = new ConcurrentLinkedQueue<>();
+
+    private SymbolTable() {
+    }
+
+    // Takes a reference, give it back with release
+    static Symbol intern(String name) {
+        Symbol symbol = byName.get(name);
+        if (symbol != null && symbol.retainIfUsed()) return symbol;
+
+        return byName.compute(name, (n, s) -> {
+            if (s == null) {
+                s = new Symbol(allocate(), n);
+                publish(s);
+            }
+            s.retain();
+            return s;
+        });
+    }
+
+    // Another reference to a symbol the caller holds one of
+    static void retain(Symbol symbol) {
+        symbol.retain();
+    }
+
+    static void release(Symbol symbol) {
+        if (symbol.releaseLast()) {
+            if (symbol.isIdle())
+                remove(symbol);
+            else
+                cooling.add(symbol);
+        }
+
+        // Taken again meanwhile, it comes back here when released
+        Symbol head;
+        while ((head = cooling.peek()) != null && (head.isUsed() || head.isIdle())) {
+            if (cooling.remove(head))
+                remove(head);
+        }
+    }
+
+    // null for a name not interned, for lookups that must not add one;
+    //  takes no reference, so the symbol may be removed at any time
+    static Symbol lookup(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    // Still the table's symbol for its name
+    static boolean isLive(Symbol symbol) {
+        return byName.get(symbol.name) == symbol;
+    }
+
+    // null for an id not in use
+    static Symbol byId(int id) {
+        Symbol[] table = byId;
+        return id > 0 && id < table.length ? table[id] : null;
+    }
+
+    // Live view of everything interned
+    static Collection<Symbol> symbols() {
+        return byName.values();
+    }
+
+    // Gone unless taken again meanwhile
+    private static void remove(Symbol symbol) {
+        byName.computeIfPresent(symbol.name, (n, s) -> {
+            if (s != symbol || s.isUsed())
+                return s;
+            free(s);
+            return null;
+        });
+    }
+
+    private static synchronized int allocate() {
+        int id = ids.nextClearBit(1);
+        ids.set(id);
+        return id;
+    }
+
+    private static synchronized void publish(Symbol s) {
+        Symbol[] table = byId;
+        if (s.id >= table.length)
+            table = Arrays.copyOf(table, Math.max(table.length * 2, s.id + 1));
+        table[s.id] = s;
+        byId = table;
+    }
+
+    private static synchronized void free(Symbol s) {
+        Symbol[] table = byId;
+        if (table[s.id] == s)
+            table[s.id] = null;
+        byId = table;
+        ids.clear(s.id);
+    }
+}
@@ -0,0 +1,48 @@
+package up.project.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// The timing wheel of the thread per connection mode, on a thread of its own
+//  (the reactors each run theirs in the selector loop). Other threads hand
+//  work over through the mailbox, timer tasks run on this thread
+final class TimerThread extends Thread {
+    private final TimingWheel wheel = new TimingWheel(ServerConfig.TIMER_TICK_MILLIS);
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+
+    TimerThread() {
+        super("timers");
+        setDaemon(true);
+    }
+
+    // Run task on this thread after delayMillis, callable from any thread
+    void schedule(Runnable task, long delayMillis) {
+        mailbox.add(() -> wheel.schedule(task, delayMillis));
+        LockSupport.unpark(this);
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task;
+            while ((task = mailbox.poll()) != null) {
+                task.run();
+            }
+
+            long now = TimingWheel.now();
+            try {
+                wheel.advance(now);
+            } catch (RuntimeException e) {
+                Log.error("{}: timer task failed", getName(), e);
+            }
+
+            if (wheel.isEmpty()) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, Math.max(1, wheel.millisToNextTick(TimingWheel.now())) * 1_000_000);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package up.project.chat;
+
+// Hierarchical hashed timing wheel, confined to the thread that owns it
+//  four levels of 256 slots, each slot a doubly linked list, so scheduling
+//  and cancelling are O(1) whatever the number of timers. Level 0 slots are
+//  one tick apart, every level up covers 256 times the span of the one
+//  below; when the clock reaches a higher slot its timers are cascaded
+//  down, timers due within the next 256 ticks are always on level 0
+final class TimingWheel {
+    static private final int SLOT_BITS = 8;
+    static private final int SLOTS = 1 << SLOT_BITS;
+    static private final int MASK = SLOTS - 1;
+    static private final int LEVELS = 4;
+
+    // Longest delay in ticks, later timers fire at this
+    static private final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final long startMillis;
+
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+    // Ticks handled so far
+    private long tick;
+    private int size;
+
+    TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = now();
+    }
+
+    // Monotonic milliseconds, the clock the wheel runs on
+    static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Run task once delayMillis have passed, give or take a tick
+    Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.min(MAX_TICKS, Math.max(1, (delayMillis + tickMillis - 1) / tickMillis));
+
+        // Owners only advance a wheel with timers on it, so an empty one may
+        //  be far behind the clock; with nothing to run it can just catch up
+        if (size == 0)
+            tick = Math.max(tick, (now() - startMillis) / tickMillis);
+
+        Timeout t = new Timeout(task, tick + ticks);
+        place(t);
+        size++;
+        return t;
+    }
+
+    // Milliseconds until the next tick is due, for the owner's wait
+    long millisToNextTick(long now) {
+        return Math.max(0, startMillis + (tick + 1) * tickMillis - now);
+    }
+
+    // Run the timers due by now, in tick order
+    void advance(long now) {
+        long target = (now - startMillis) / tickMillis;
+
+        while (tick < target) {
+            tick++;
+
+            // Entering a new slot on a higher level, spread it over the lower ones
+            for (int level = 1; level < LEVELS; level++) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+                    break;
+
+                int slot = (int) (tick >>> (SLOT_BITS * level)) & MASK;
+                Timeout t;
+                while ((t = slots[level][slot]) != null) {
+                    unlink(t);
+                    place(t);
+                }
+            }
+
+            // A task may cancel or add timers, so take them one at a time
+            int slot = (int) tick & MASK;
+            Timeout t;
+            while ((t = slots[0][slot]) != null) {
+                unlink(t);
+                size--;
+                t.task.run();
+            }
+        }
+    }
+
+    private void place(Timeout t) {
+        long delta = Math.max(0, t.deadline - tick);
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+
+        t.level = level;
+        t.slot = (int) (t.deadline >>> (SLOT_BITS * level)) & MASK;
+
+        Timeout head = slots[level][t.slot];
+        t.prev = null;
+        t.next = head;
+        if (head != null)
+            head.prev = t;
+        slots[level][t.slot] = t;
+        t.wheel = this;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            slots[t.level][t.slot] = t.next;
+
+        if (t.next != null)
+            t.next.prev = t.prev;
+
+        t.prev = t.next = null;
+        t.wheel = null;
+    }
+
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+
+        private Timeout prev, next;
+        private int level, slot;
+
+        // null once fired or cancelled
+        private TimingWheel wheel;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Only on the wheel's thread; nothing happens if it already fired
+        void cancel() {
+            TimingWheel w = wheel;
+            if (w != null) {
+                w.unlink(this);
+                w.size--;
+            }
+        }
+    }
+}
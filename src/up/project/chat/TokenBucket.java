@@ -0,0 +1,50 @@
+package up.project.chat;
+
+// Token bucket for one RateLimit
+//  tokens are kept in millionths so refills need no floating point, and a
+//  check is a few arithmetic operations on two fields. Rooms share theirs
+//  between reactors, hence the (uncontended, as a rule) lock
+final class TokenBucket {
+    static private final long TOKEN = 1_000_000;
+
+    private final RateLimit limit;
+
+    // Millionths of a token, may go below zero when a shared bucket is overdrawn
+    private long micros;
+    private long refilled;
+
+    TokenBucket(RateLimit limit) {
+        this.limit = limit;
+        this.micros = limit.burst * TOKEN;
+        this.refilled = System.nanoTime();
+    }
+
+    RateLimit limit() {
+        return limit;
+    }
+
+    // Millis until a token is there, 0 if one is there now; takes nothing
+    synchronized long delay(long now) {
+        long elapsed = now - refilled;
+        if (elapsed > 0) {
+            // Past a full refill the exact time does not matter, and it keeps the product small
+            elapsed = Math.min(elapsed, 1_000_000_000L * limit.burst / limit.rate + 1_000_000);
+            micros = Math.min(limit.burst * TOKEN, micros + elapsed * limit.rate / 1000);
+            refilled = now;
+        }
+
+        if (micros >= TOKEN)
+            return 0;
+        return Math.max(1, ((TOKEN - micros) / limit.rate + 999) / 1000);
+    }
+
+    // Back to its whole burst, as good as a new bucket
+    synchronized boolean isFull(long now) {
+        delay(now);
+        return micros >= limit.burst * TOKEN;
+    }
+
+    synchronized void take() {
+        micros -= TOKEN;
+    }
+}
@@ -0,0 +1,32 @@
+package up.project.chat;
+
+// How frames reach a client, implemented by each server mode
+interface Transport {
+    // Queue a frame for the client, callable from any thread
+    void send(ClientInfo cc, Frame frame);
+
+    // Queue a frame for ccs[from..to), all served by this transport, callable
+    //  from any thread; ccs is not modified
+    void send(ClientInfo[] ccs, int from, int to, Frame frame);
+
+    // Queue a range of a history file, it goes out after the frames queued before it
+    void send(ClientInfo cc, FileRegion region);
+
+    // Run task on the thread serving cc, then go on with the commands it has
+    //  sent meanwhile; used when a command had to wait for another node
+    void resume(ClientInfo cc, Runnable task);
+
+    // Run task on the thread serving cc even while it waits for input, which
+    //  is ended for good; used to see clients out on shutdown
+    void interrupt(ClientInfo cc, Runnable task);
+
+    // Close once everything queued so far (BYE included) has been written
+    void closeAfterFlush(ClientInfo cc);
+
+    // Drop the connection now, callable from the thread running cc's timers
+    void close(ClientInfo cc);
+
+    // Run task on the timer thread serving cc after delayMillis, callable
+    //  from the thread serving cc
+    void schedule(ClientInfo cc, Runnable task, long delayMillis);
+}
@@ -0,0 +1,53 @@
+package up.project.chat;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Alternative to the reactors: plain blocking I/O with a virtual thread per
+//  connection (and one more for its writes), sharing the same ChatEngine
+final class VirtualThreadServer {
+
+    private VirtualThreadServer() {
+    }
+
+    // Returns once the listening channel is closed by the shutdown hook
+    static void run(ServerSocketChannel ssc, ChatEngine engine) throws IOException {
+        ExecutorService threads = newThreadPerTaskExecutor();
+
+        TimerThread timers = new TimerThread();
+        timers.start();
+
+        Log.info("Listening on port {} with a thread per connection", ssc.socket().getLocalPort());
+
+        while (true) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            Metrics.accepted.increment();
+
+            BlockingConnection conn = new BlockingConnection(sc, engine, timers);
+            threads.execute(conn::readLoop);
+            threads.execute(conn::writeLoop);
+            conn.watch();
+        }
+    }
+
+    // Virtual threads only exist from Java 21 on, older runtimes fall back
+    //  to a (much heavier) platform thread per task
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,703 @@
+package up.project.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+// Randomised input for the read path, checked against protocol invariants
+//
+//   java up.project.chat.WireFuzz [seed=N] [rounds=1000] [round=N] [clients=8] [units=300]
+//
+// Each round drives an engine in-process, without sockets: a few clients
+//  send random units (commands, messages, garbage, lines around and past
+//  chat.maxLine, CRLF, binary requests, packets after /compress). The round
+//  is then replayed on a second engine with every client's bytes cut into
+//  random fragments, down to single bytes and running into the next unit;
+//  every client must get exactly the same bytes both times. On top of that:
+//   - nothing the engine does throws
+//   - every command gets exactly one OK, ERROR or BYE, a message gets an
+//     ERROR outside a room and nothing inside one
+//   - nicks and rooms are not empty and hold no spaces or line breaks
+//   - a client's nick and room point back at it, room members are live
+//   - once every client is gone no nick is held, no room is left and
+//     nothing is interned
+// A failure prints the seed and round, round=N reruns just that one.
+public class WireFuzz {
+    // What a unit should get back
+    static private final int SILENT = 0;
+    static private final int REPLY = 1;
+    static private final int MESSAGE = 2;
+
+    static private final String[] NAMES = {
+            "ann", "bob", "cy", "dee", "ção", "日本", "", " ", "a b", "ann ", " bob", "x\ty", "a\rb", "/nick"
+    };
+
+    private final Random random;
+    private final int clients, units, maxLine;
+
+    // The round as run by the first engine, replayed by the second
+    private final List<Unit> schedule = new ArrayList<>();
+
+    private WireFuzz(long seed, int round, int clients, int units) {
+        this.random = new Random(seed ^ round * 0x9E3779B97F4A7C15L);
+        this.clients = clients;
+        this.units = units;
+        this.maxLine = ServerConfig.MAX_LINE;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq == -1) throw new IllegalArgumentException("expected key=value: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        // Before ServerConfig loads: short lines so that over-long ones are
+        //  cheap, rooms delivered by the sender's thread, a quiet log
+        defaultProperty("chat.maxLine", "256");
+        defaultProperty("chat.fanout.shardMin", "0");
+        defaultProperty("chat.log.level", "WARN");
+
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : System.nanoTime();
+        int rounds = intOption(options, "rounds", 1000);
+        int only = intOption(options, "round", -1);
+        int clients = intOption(options, "clients", 8);
+        int units = intOption(options, "units", 300);
+
+        System.out.println("WireFuzz seed=" + seed + " maxLine=" + ServerConfig.MAX_LINE);
+
+        String burst = burst(ServerConfig.MAX_LINE);
+        if (burst != null) {
+            System.out.println("FAILED burst: " + burst);
+            System.exit(1);
+        }
+
+        int from = only >= 0 ? only : 0;
+        int to = only >= 0 ? only + 1 : rounds;
+        for (int round = from; round < to; round++) {
+            String failure;
+            try {
+                failure = new WireFuzz(seed, round, clients, units).run();
+            } catch (RuntimeException | AssertionError e) {
+                e.printStackTrace(System.out);
+                failure = "threw " + e;
+            }
+
+            if (failure != null) {
+                System.out.println("FAILED seed=" + seed + " round=" + round + ": " + failure);
+                System.exit(1);
+            }
+            if ((round + 1) % 100 == 0)
+                System.out.println(round + 1 + " rounds");
+        }
+        System.out.println("OK " + (to - from) + " rounds");
+    }
+
+    // null when the round passed
+    private String run() {
+        Recorder whole = new Recorder();
+        String failure = generate(whole);
+        if (failure != null)
+            return failure;
+
+        Recorder fragmented = new Recorder();
+        failure = replay(fragmented);
+        if (failure != null)
+            return failure;
+
+        for (int c = 0; c < whole.outputs.size(); c++) {
+            Output a = whole.outputs.get(c), b = fragmented.outputs.get(c);
+            if (a.closed != b.closed)
+                return "client " + c + " closed " + a.closed + " whole, " + b.closed + " fragmented";
+            byte[] x = a.bytes.toByteArray(), y = b.bytes.toByteArray();
+            if (!Arrays.equals(x, y)) {
+                int at = Arrays.mismatch(x, y);
+                return "client " + c + " output differs at byte " + at + " of " + x.length + "/" + y.length
+                        + ", whole: " + show(x, at) + " fragmented: " + show(y, at);
+            }
+        }
+        return null;
+    }
+
+    // A client's flush of many lines after /compress: one packet per line and
+    //  none past chat.maxLine + 16, so every line arrives and an over-long
+    //  one is only an ERROR. A broken packet then closes the connection
+    private static String burst(int maxLine) {
+        ChatEngine engine = new ChatEngine();
+        Recorder rec = new Recorder();
+        ClientInfo reader = engine.newClient(null, rec);
+        ClientInfo writer = engine.newClient(null, rec);
+        rec.outputs.add(new Output());
+        rec.outputs.add(new Output());
+
+        reader.getFramer().feed(ByteBuffer.wrap(ascii("/nick reader\n/join burst\n")));
+        engine.processCommands(reader);
+        writer.getFramer().feed(ByteBuffer.wrap(ascii("/nick writer\n/join burst\n/compress\n")));
+        engine.processCommands(writer);
+
+        int lines = 3000;
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        try (PackedOutputStream out = new PackedOutputStream(sent, maxLine + 16)) {
+            for (int i = 0; i < lines; i++) {
+                out.write(ascii("line " + i + "\n"));
+                out.endPacket();
+                if (i == lines / 2) {
+                    out.write(new byte[maxLine * 3]);
+                    out.write('\n');
+                    out.endPacket();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            return "threw " + e;
+        }
+        if (sent.size() <= maxLine + 16)
+            return "burst of " + sent.size() + " bytes fits in one packet";
+
+        int before = rec.output(writer).replies;
+        writer.getFramer().feed(ByteBuffer.wrap(sent.toByteArray()));
+        engine.processCommands(writer);
+
+        int replies = rec.output(writer).replies - before;
+        if (replies != 1 || rec.output(writer).closed)
+            return replies + " replies to the writer, closed " + rec.output(writer).closed + ", expected one ERROR";
+        String got = new String(rec.output(reader).bytes.toByteArray(), StandardCharsets.UTF_8);
+        int messages = got.split("\nMESSAGE writer line ", -1).length - 1;
+        if (messages != lines)
+            return messages + " of " + lines + " lines reached the room";
+
+        ByteBuffer header = Frame.packetHeader(maxLine + 17, false);
+        before = rec.output(writer).replies;
+        writer.getFramer().feed(header);
+        engine.processCommands(writer);
+        if (rec.output(writer).replies - before != 1 || !rec.output(writer).closed)
+            return "a broken packet did not close the writer with one ERROR";
+
+        return finish(engine, Arrays.asList(reader, writer), "burst");
+    }
+
+    // First run, a whole unit per read; picks the units as it goes, they
+    //  depend on the state each client is in
+    private String generate(Recorder rec) {
+        ChatEngine engine = new ChatEngine();
+        List<ClientInfo> all = new ArrayList<>();
+        List<Integer> talking = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++)
+            talking.add(spawn(engine, rec, all));
+
+        for (int step = 0; step < units; step++) {
+            int c = talking.get(random.nextInt(talking.size()));
+            ClientInfo cc = all.get(c);
+
+            Unit u = unit(c, cc.getFramer());
+            schedule.add(u);
+
+            boolean in = cc.getState() == ClientInfo.STATE_IN;
+            int before = rec.output(cc).replies;
+
+            cc.getFramer().feed(ByteBuffer.wrap(u.bytes));
+            engine.processCommands(cc);
+
+            int replies = rec.output(cc).replies - before;
+            int expected = u.kind == MESSAGE ? (in ? 0 : 1) : u.kind == REPLY ? 1 : 0;
+            if (replies != expected)
+                return "unit " + step + " to client " + c + " got " + replies + " replies, expected "
+                        + expected + ": " + show(u.bytes, 0);
+
+            if (rec.output(cc).closed)
+                engine.deleteClient(cc);
+
+            String broken = check(all, rec);
+            if (broken != null)
+                return "after unit " + step + " to client " + c + " (" + show(u.bytes, 0) + "): " + broken;
+
+            // A client that said bye, or broke its stream, is replaced by a new one
+            if (rec.output(cc).closed || u.last) {
+                talking.remove(Integer.valueOf(c));
+                talking.add(spawn(engine, rec, all));
+            }
+        }
+
+        return finish(engine, all, "whole");
+    }
+
+    // Second run, same units in the same order, each client's bytes fed in
+    //  random fragments that may already hold the start of its next unit
+    private String replay(Recorder rec) {
+        ChatEngine engine = new ChatEngine();
+        List<ClientInfo> all = new ArrayList<>();
+
+        // Each client's units, the next one and how much of it was fed early
+        List<List<Unit>> byClient = new ArrayList<>();
+        for (Unit u : schedule) {
+            while (byClient.size() <= u.client) byClient.add(new ArrayList<>());
+            if (u.bytes != null) byClient.get(u.client).add(u);
+        }
+        int[] next = new int[byClient.size()];
+        int[] early = new int[byClient.size()];
+
+        for (Unit u : schedule) {
+            if (u.bytes == null) {
+                all.add(engine.newClient(null, rec));
+                rec.outputs.add(new Output());
+                continue;
+            }
+
+            int c = u.client;
+            ClientInfo cc = all.get(c);
+            List<Unit> own = byClient.get(c);
+            Unit following = ++next[c] < own.size() ? own.get(next[c]) : null;
+
+            // Never far enough into the next unit to complete it or to run
+            //  past chat.maxLine on its own
+            int carry = 0;
+            if (following != null && !following.whole && following.bytes.length > 1 && random.nextBoolean())
+                carry = 1 + random.nextInt(Math.min(following.bytes.length - 1, maxLine / 2));
+
+            byte[] bytes = new byte[u.bytes.length - early[c] + carry];
+            System.arraycopy(u.bytes, early[c], bytes, 0, u.bytes.length - early[c]);
+            if (carry > 0)
+                System.arraycopy(following.bytes, 0, bytes, u.bytes.length - early[c], carry);
+            early[c] = carry;
+
+            for (int pos = 0; pos < bytes.length; ) {
+                int n = random.nextInt(4) == 0 ? 1 : 1 + random.nextInt(bytes.length - pos);
+                cc.getFramer().feed(ByteBuffer.wrap(bytes, pos, Math.min(n, bytes.length - pos)));
+                pos += n;
+                engine.processCommands(cc);
+            }
+
+            if (rec.output(cc).closed)
+                engine.deleteClient(cc);
+        }
+
+        return finish(engine, all, "fragmented");
+    }
+
+    private int spawn(ChatEngine engine, Recorder rec, List<ClientInfo> all) {
+        ClientInfo cc = engine.newClient(null, rec);
+        all.add(cc);
+        rec.outputs.add(new Output());
+
+        int c = all.size() - 1;
+        schedule.add(new Unit(c, null, SILENT, false, false));
+        return c;
+    }
+
+    // Everybody leaves, nothing may be left behind
+    private static String finish(ChatEngine engine, List<ClientInfo> all, String run) {
+        for (ClientInfo cc : all)
+            engine.deleteClient(cc);
+
+        for (Symbol s : SymbolTable.symbols()) {
+            if (s.holder() != null)
+                return run + ": nick '" + s.name + "' still held after every client left";
+            if (s.room() != null)
+                return run + ": room '" + s.name + "' still there after every client left";
+            return run + ": '" + s.name + "' still interned after every client left";
+        }
+        return null;
+    }
+
+    // Nicks and rooms of the live clients agree with the registry and each other
+    private static String check(List<ClientInfo> all, Recorder rec) {
+        for (ClientInfo cc : all) {
+            if (rec.output(cc).closed) continue;
+
+            Symbol nick = cc.getNickSymbol();
+            Room room = cc.getRoom();
+
+            if (nick != null) {
+                if (!isName(nick.name))
+                    return "client " + cc.getId() + " got nick '" + nick.name + "'";
+                if (nick.holder() != cc)
+                    return "nick '" + nick.name + "' of client " + cc.getId() + " is held by " + nick.holder();
+            }
+
+            if (room != null) {
+                if (!isName(room.getName()))
+                    return "client " + cc.getId() + " joined room '" + room.getName() + "'";
+                if (room.getSymbol().room() != room)
+                    return "room '" + room.getName() + "' is not the room of that name";
+                if (!Arrays.asList(room.members()).contains(cc))
+                    return "client " + cc.getId() + " is not a member of its room '" + room.getName() + "'";
+            }
+        }
+
+        for (ClientInfo cc : all) {
+            Room room = cc.getRoom();
+            if (room == null || rec.output(cc).closed) continue;
+            for (ClientInfo m : room.members()) {
+                if (m.getRoom() != room || rec.output(m).closed)
+                    return "client " + m.getId() + " is a member of '" + room.getName() + "' but is not in it";
+            }
+        }
+        return null;
+    }
+
+    private static boolean isName(String name) {
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) <= ' ' || name.charAt(i) == 0x7f) return false;
+        }
+        return true;
+    }
+
+    // The next unit for a client, in the framing it is in now
+    private Unit unit(int c, LineFramer framer) {
+        boolean packed = framer.isCompressed();
+
+        if (packed && random.nextInt(80) == 0)
+            return new Unit(c, brokenPacket(), REPLY, true, true);
+
+        Unit u = framer.isBinary() ? frame(c, packed) : line(c, packed);
+        if (!packed)
+            return u;
+
+        // Packets hold at most chat.maxLine + 16 bytes, deflated or not, past
+        //  that the stream is broken
+        byte[] packet = pack(u.bytes);
+        int header = 0;
+        for (int i = 0, shift = 0; i < packet.length; i++, shift += 7) {
+            header |= (packet[i] & 0x7f) << shift;
+            if (packet[i] >= 0) break;
+        }
+        boolean fits = u.bytes.length <= maxLine + 16 && header >>> 1 <= maxLine + 16;
+        return new Unit(c, packet, fits ? u.kind : REPLY, u.whole || !fits, !fits);
+    }
+
+    private Unit line(int c, boolean packed) {
+        byte[] content;
+        switch (random.nextInt(18)) {
+            case 0: case 1:
+                content = ascii("/nick " + name());
+                break;
+            case 2: case 3:
+                content = ascii("/join " + name());
+                break;
+            case 4:
+                content = ascii("/leave");
+                break;
+            case 5:
+                content = ascii("/priv " + name() + (random.nextBoolean() ? " " + text() : ""));
+                break;
+            case 6:
+                content = ascii(pick("/pong", "/stats", "/resume 12345", "/resume x", "/nick", "/join", "/", "//",
+                        "//" + text(), "/" + text(), "/binary", "/compress", "/bye", "/priv", "/priv ann"));
+                break;
+            case 7: case 8: case 9: case 10:
+                content = ascii(text());
+                break;
+            case 11:
+                content = new byte[0];
+                break;
+            case 12:
+                content = garbage(random.nextInt(60));
+                break;
+            case 13:
+                // Right at chat.maxLine, either side of it
+                content = filled(maxLine - 2 + random.nextInt(packed ? 5 : 6));
+                break;
+            case 14:
+                content = filled(packed ? maxLine + random.nextInt(8) : maxLine + random.nextInt(3 * maxLine));
+                break;
+            default:
+                content = ascii(random.nextBoolean() ? "/nick " + name() : text());
+        }
+
+        // Only one trailing CR is taken off, the rest is content
+        boolean cr = random.nextInt(4) == 0;
+        byte[] bytes = Arrays.copyOf(content, content.length + (cr ? 2 : 1));
+        if (cr) bytes[content.length] = '\r';
+        bytes[bytes.length - 1] = '\n';
+
+        int len = bytes.length - 1;
+        if (len > 0 && bytes[len - 1] == '\r') len--;
+
+        int kind;
+        if (len > maxLine) kind = REPLY;
+        else if (len == 0) kind = SILENT;
+        else if (bytes[0] != '/' || (len > 1 && bytes[1] == '/')) kind = MESSAGE;
+        else if (startsWith(bytes, len, "/pong")) kind = SILENT;
+        else kind = REPLY;
+
+        return new Unit(c, bytes, kind, false, false);
+    }
+
+    private Unit frame(int c, boolean packed) {
+        FrameBuilder b = FrameBuilder.start();
+        switch (random.nextInt(16)) {
+            case 0: case 1:
+                b.put(Frame.REQ_NICK).putVarint(0).put(name());
+                break;
+            case 2: case 3:
+                b.put(Frame.REQ_JOIN).putVarint(0).put(name());
+                break;
+            case 4:
+                b.put(Frame.REQ_LEAVE);
+                break;
+            case 5:
+                b.put(Frame.REQ_PRIV).putVarint(0).put(name() + " " + text());
+                break;
+            case 6:
+                // By id, whatever it stands for
+                b.put(Frame.REQ_PRIV).putVarint(random.nextInt(64)).put(text());
+                break;
+            case 7:
+                b.put(pick(Frame.REQ_PONG, Frame.REQ_STATS, Frame.REQ_RESUME, Frame.REQ_COMPRESS, Frame.REQ_BYE,
+                        Frame.OK, (byte) random.nextInt()));
+                break;
+            case 8:
+                // Nothing at all, not even an opcode
+                break;
+            case 9:
+                b.put(garbage(1 + random.nextInt(40)));
+                break;
+            case 10:
+                byte[] big = filled(packed ? maxLine - 2 + random.nextInt(10) : maxLine - 2 + random.nextInt(2 * maxLine));
+                big[0] = Frame.REQ_SEND;
+                b.put(big);
+                break;
+            default:
+                // Binary payloads may hold anything, newlines included
+                byte[] text = garbage(random.nextInt(60));
+                b.put(Frame.REQ_SEND).putVarint(0).put(text);
+                if (random.nextBoolean()) b.put((byte) '\n');
+        }
+
+        ByteBuffer body = b.seal();
+        int len = body.remaining();
+        byte op = len > 0 ? body.get(0) : 0;
+
+        ByteBuffer header = FrameBuilder.start().putVarint(len).seal();
+        byte[] bytes = new byte[header.remaining() + len];
+        header.get(bytes, 0, header.remaining());
+        body.get(bytes, bytes.length - len, len);
+
+        int kind;
+        if (len > maxLine || len == 0) kind = REPLY;
+        else if (op == Frame.REQ_SEND) kind = MESSAGE;
+        else if (op == Frame.REQ_PONG) kind = SILENT;
+        else kind = REPLY;
+
+        // Past chat.maxLine the header alone is an error, so it must not arrive early
+        return new Unit(c, bytes, kind, len > maxLine, false);
+    }
+
+    // A packet of its own, deflated or not
+    private byte[] pack(byte[] body) {
+        byte[] data = body;
+        boolean deflated = random.nextBoolean();
+        if (deflated)
+            data = deflate(body);
+
+        ByteBuffer header = Frame.packetHeader(data.length, deflated);
+        byte[] bytes = new byte[header.remaining() + data.length];
+        header.get(bytes, 0, header.remaining());
+        System.arraycopy(data, 0, bytes, bytes.length - data.length, data.length);
+        return bytes;
+    }
+
+    // A packet that ends the stream: too long a header, or one that inflates too far
+    private byte[] brokenPacket() {
+        if (random.nextBoolean()) {
+            ByteBuffer header = Frame.packetHeader(maxLine + 17 + random.nextInt(1000), random.nextBoolean());
+            byte[] bytes = new byte[header.remaining()];
+            header.get(bytes);
+            return bytes;
+        }
+
+        byte[] data = deflate(new byte[(maxLine + 16) * (2 + random.nextInt(8))]);
+        ByteBuffer header = Frame.packetHeader(data.length, true);
+        byte[] bytes = new byte[header.remaining() + data.length];
+        header.get(bytes, 0, header.remaining());
+        System.arraycopy(data, 0, bytes, bytes.length - data.length, data.length);
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private String name() {
+        if (random.nextInt(4) == 0)
+            return new String(garbage(random.nextInt(6)), StandardCharsets.ISO_8859_1);
+        return NAMES[random.nextInt(NAMES.length)];
+    }
+
+    // Mostly ASCII words, some multi-byte characters
+    private String text() {
+        StringBuilder sb = new StringBuilder();
+        int n = random.nextInt(40);
+        for (int i = 0; i < n; i++) {
+            int r = random.nextInt(20);
+            sb.append(r == 0 ? 'é' : r == 1 ? '€' : r == 2 ? "😀" : r < 6 ? " " : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    // Any bytes but a newline
+    private byte[] garbage(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        for (int i = 0; i < n; i++) {
+            if (b[i] == '\n') b[i] = '\r';
+        }
+        return b;
+    }
+
+    private byte[] filled(int n) {
+        byte[] b = new byte[Math.max(0, n)];
+        Arrays.fill(b, (byte) ('a' + random.nextInt(26)));
+        return b;
+    }
+
+    @SafeVarargs
+    private final <T> T pick(T... choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    // Strings here go out as UTF-8, garbage names are latin-1 bytes
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean startsWith(byte[] b, int len, String prefix) {
+        if (len < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // A few bytes around at, printable
+    private static String show(byte[] b, int at) {
+        int from = Math.max(0, at - 16), to = Math.min(b.length, at + 48);
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = from; i < to; i++) {
+            int c = b[i] & 0xff;
+            if (c >= ' ' && c < 0x7f && c != '"' && c != '\\') sb.append((char) c);
+            else sb.append(String.format("\\x%02x", c));
+        }
+        return sb.append(to < b.length ? "...\"" : "\"").toString();
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null)
+            System.setProperty(name, value);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int def) {
+        String v = options.get(name);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    // A line or frame as the client sends it, null bytes for a new client
+    private static final class Unit {
+        final int client;
+        final byte[] bytes;
+        final int kind;
+        // Must not be started early, its first bytes alone change the outcome
+        final boolean whole;
+        // Nothing the client sends after it is read
+        final boolean last;
+
+        Unit(int client, byte[] bytes, int kind, boolean whole, boolean last) {
+            this.client = client;
+            this.bytes = bytes;
+            this.kind = kind;
+            this.whole = whole;
+            this.last = last;
+        }
+    }
+
+    // What one client got
+    private static final class Output {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int replies;
+        boolean closed;
+    }
+
+    // Frames are queued and taken straight off again, everything on the caller's thread
+    private static final class Recorder implements Transport {
+        final List<Output> outputs = new ArrayList<>();
+
+        // Clients are numbered in order of creation, ids start at 1
+        Output output(ClientInfo cc) {
+            return outputs.get(cc.getId() - 1);
+        }
+
+        @Override
+        public void send(ClientInfo cc, Frame frame) {
+            Output out = output(cc);
+            if (out.closed) return;
+
+            if (frame.op() <= Frame.BYE) out.replies++;
+            frame.queueFor(cc);
+
+            ByteBuffer b;
+            while ((b = cc.getOutbound().poll()) != null) {
+                byte[] copy = new byte[b.remaining()];
+                b.duplicate().get(copy);
+                out.bytes.write(copy, 0, copy.length);
+            }
+        }
+
+        @Override
+        public void send(ClientInfo[] ccs, int from, int to, Frame frame) {
+            for (int i = from; i < to; i++)
+                send(ccs[i], frame);
+        }
+
+        @Override
+        public void send(ClientInfo cc, FileRegion region) {
+            throw new IllegalStateException("no history here");
+        }
+
+        @Override
+        public void resume(ClientInfo cc, Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void interrupt(ClientInfo cc, Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void closeAfterFlush(ClientInfo cc) {
+            output(cc).closed = true;
+        }
+
+        @Override
+        public void close(ClientInfo cc) {
+            output(cc).closed = true;
+        }
+
+        @Override
+        public void schedule(ClientInfo cc, Runnable task, long delayMillis) {
+            // No timers here
+        }
+    }
+}